@@ -28,6 +28,8 @@ import com.jagrosh.jdautilities.waiter.EventWaiter
 import com.sedmelluq.discord.lavaplayer.tools.PlayerLibrary
 import com.timgroup.statsd.NonBlockingStatsDClient
 import gg.octave.bot.apis.nodes.NodeInfoPoster
+import gg.octave.bot.apis.nodes.ShardStatsAggregator
+import gg.octave.bot.apis.nodes.StatsHistory
 import gg.octave.bot.apis.patreon.PatreonAPI
 import gg.octave.bot.apis.statsposter.StatsPoster
 import gg.octave.bot.db.Database
@@ -39,8 +41,14 @@ import gg.octave.bot.entities.framework.parsers.*
 import gg.octave.bot.listeners.BotListener
 import gg.octave.bot.listeners.FlightEventAdapter
 import gg.octave.bot.listeners.VoiceListener
+import gg.octave.bot.metrics.Metrics
+import gg.octave.bot.metrics.ProfilingExecutor
+import gg.octave.bot.metrics.PrometheusExporter
+import gg.octave.bot.metrics.jfr.JfrRecorder
 import gg.octave.bot.music.PlayerRegistry
+import gg.octave.bot.music.send.AdaptiveAudioSendFactory
 import gg.octave.bot.utils.DiscordFM
+import gg.octave.bot.utils.DiscordLogBack
 import gg.octave.bot.utils.OctaveBot
 import gg.octave.bot.utils.extensions.registerAlmostAllParsers
 import io.sentry.Sentry
@@ -64,8 +72,10 @@ object Launcher {
     val eventWaiter = EventWaiter()
     val datadog = NonBlockingStatsDClient("statsd", "localhost", 8125)
     val statsPoster = StatsPoster(configuration.clientId)
+    val shardStats = ShardStatsAggregator()
     val patreon = PatreonAPI(credentials.patreonAccessToken)
 
+    val audioSendFactory = AdaptiveAudioSendFactory(configuration)
     val players = PlayerRegistry()
     val discordFm = DiscordFM()
 
@@ -95,10 +105,11 @@ object Launcher {
         Sentry.init(configuration.sentryDsn)
         Sentry.getStoredClient().release = OctaveBot.GIT_REVISION
         RestAction.setPassContext(false)
+        JfrRecorder.start()
 
-        commandExecutor = Executors.newCachedThreadPool(
+        commandExecutor = ProfilingExecutor(Executors.newCachedThreadPool(
             ThreadFactoryBuilder().setNameFormat("Octave-FlightExecutor-%d").get()
-        )
+        ))
 
         commandClient = CommandClientBuilder()
             .setPrefixProvider(DefaultPrefixProvider())
@@ -120,10 +131,30 @@ object Launcher {
 
         commandClient.commands.register("gg.octave.bot.commands")
 
+        Metrics.gauge("octave_bot.guilds") { shardStats.guildCount }
+        Metrics.gauge("octave_bot.users") { shardManager.userCache.size() }
+        Metrics.gauge("octave_bot.players") { players.size() }
+        Metrics.gauge("octave_bot.logging.dropped") { DiscordLogBack.droppedMessages }
+
+        if (configuration.prometheusEnabled) {
+            PrometheusExporter(configuration.prometheusHost, configuration.prometheusPort).start()
+        }
+
         if (configuration.nodeNumber == 0) {
             statsPoster.postEvery(30, TimeUnit.MINUTES)
         }
 
         NodeInfoPoster(configuration.nodeNumber).postEvery(5, TimeUnit.SECONDS)
+        StatsHistory(configuration.nodeNumber).start()
+
+        // Deploys stop the process with SIGTERM; hand players over before the shards go away.
+        // This replaces JDA's own hook, which would tear the shards down at the same time.
+        Runtime.getRuntime().addShutdownHook(Thread {
+            try {
+                players.migrator.drain()
+            } finally {
+                shardManager.shutdown()
+            }
+        })
     }
 }
@@ -0,0 +1,204 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.apis.lyrics
+
+import gg.octave.bot.Launcher
+import gg.octave.bot.metrics.Metrics
+import gg.octave.bot.utils.RequestUtil
+import me.devoxin.flight.internal.utils.TextSplitter
+import org.json.JSONArray
+import org.json.JSONObject
+import org.slf4j.LoggerFactory
+import redis.clients.jedis.exceptions.JedisException
+import redis.clients.jedis.params.SetParams
+import java.net.URLEncoder
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * Lyrics lookups, cached by normalized title in memory (L1) and in Redis (L2) so the same now-playing
+ * song across many guilds is fetched once. Titles without lyrics are cached too, for a shorter time.
+ *
+ * Concurrent lookups of the same title share a single request, and lyrics are stored already split
+ * into pages.
+ */
+object LyricsCache {
+    private val log = LoggerFactory.getLogger(LyricsCache::class.java)
+    private val executor = Executors.newFixedThreadPool(2) { Thread(it, "Lyrics-Cache").apply { isDaemon = true } }
+
+    private const val PAGE_LENGTH = 1000
+    private const val L1_SIZE = 500
+    private const val KEY_PREFIX = "lyrics:"
+    private val FOUND_TTL = TimeUnit.HOURS.toMillis(24)
+    private val NOT_FOUND_TTL = TimeUnit.HOURS.toMillis(1)
+    private val L1_TTL = TimeUnit.MINUTES.toMillis(30)
+    private val PREFETCH_WINDOW = TimeUnit.MINUTES.toMillis(30)
+
+    // Access-ordered, so the least recently used entry is dropped first. Guarded by itself.
+    private val l1 = object : LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Entry>) = size > L1_SIZE
+    }
+    private val inFlight = ConcurrentHashMap<String, CompletableFuture<Lyrics?>>()
+    // Guild ID -> when the lyrics command was last used there.
+    private val lastUsed = ConcurrentHashMap<Long, Long>()
+
+    /**
+     * @return The lyrics for [title], or null if there are none.
+     */
+    fun get(title: String): CompletableFuture<Lyrics?> {
+        val key = normalize(title)
+
+        synchronized(l1) {
+            l1[key]?.takeIf { it.expiresAt > System.currentTimeMillis() }
+        }?.let {
+            Metrics.counter("octave_bot.lyrics.lookups", "outcome:l1").increment()
+            return CompletableFuture.completedFuture(it.lyrics)
+        }
+
+        // Registered before the lookup starts, so the lookup can't finish and clean up before it's in the map.
+        val future = CompletableFuture<Lyrics?>()
+        inFlight.putIfAbsent(key, future)?.let { return it }
+
+        CompletableFuture.supplyAsync({ readL2(key) }, executor)
+            .thenCompose { cached ->
+                if (cached != null) {
+                    Metrics.counter("octave_bot.lyrics.lookups", "outcome:l2").increment()
+                    CompletableFuture.completedFuture(cached.lyrics)
+                } else {
+                    Metrics.counter("octave_bot.lyrics.lookups", "outcome:fetch").increment()
+                    fetch(title, key)
+                }
+            }
+            .whenComplete { lyrics, error ->
+                if (error == null) {
+                    synchronized(l1) { l1[key] = Entry(lyrics, System.currentTimeMillis() + L1_TTL) }
+                }
+
+                inFlight.remove(key, future)
+
+                if (error == null) {
+                    future.complete(lyrics)
+                } else {
+                    future.completeExceptionally(error)
+                }
+            }
+
+        return future
+    }
+
+    /**
+     * Records that the lyrics command was used in [guildId], enabling [prefetch] there for a while.
+     */
+    fun markUsed(guildId: Long) {
+        lastUsed[guildId] = System.currentTimeMillis()
+    }
+
+    /**
+     * Looks up lyrics ahead of time, if the lyrics command was used in [guildId] recently.
+     * [title] is resolved on the cache's own threads, so it may do blocking work.
+     */
+    fun prefetch(guildId: Long, title: () -> String?) {
+        val usedAt = lastUsed[guildId]
+            ?: return
+
+        if (System.currentTimeMillis() - usedAt > PREFETCH_WINDOW) {
+            lastUsed.remove(guildId)
+            return
+        }
+
+        CompletableFuture.supplyAsync(title, executor)
+            .thenCompose { it?.let { t -> get(t) } ?: CompletableFuture.completedFuture<Lyrics?>(null) }
+            .thenRun { Metrics.counter("octave_bot.lyrics.prefetches").increment() }
+            .exceptionally { null }
+    }
+
+    private fun fetch(title: String, key: String): CompletableFuture<Lyrics?> {
+        val encodedTitle = URLEncoder.encode(title, Charsets.UTF_8)
+
+        return RequestUtil.jsonObject {
+            url("https://lyrics.tsu.sh/v1/?q=$encodedTitle")
+            header("User-Agent", "Octave (DiscordBot, https://github.com/DankMemer/Octave)")
+        }.thenApplyAsync({
+            val lyrics = if (it.isNull("error")) {
+                Lyrics(it.getJSONObject("song").getString("full_title"), TextSplitter.split(it.getString("content"), PAGE_LENGTH).toList())
+            } else {
+                null
+            }
+
+            writeL2(key, lyrics)
+            lyrics
+        }, executor)
+    }
+
+    private fun readL2(key: String): Entry? {
+        val stored = try {
+            Launcher.database.redis { it.get(KEY_PREFIX + key) }
+        } catch (e: JedisException) {
+            log.debug("Unable to read cached lyrics", e)
+            null
+        } ?: return null
+
+        if (stored.isEmpty()) {
+            return Entry(null, 0)
+        }
+
+        val json = JSONObject(stored)
+        val pages = json.getJSONArray("pages").map { it as String }
+        return Entry(Lyrics(json.getString("title"), pages), 0)
+    }
+
+    private fun writeL2(key: String, lyrics: Lyrics?) {
+        // An empty value marks a title without lyrics.
+        val value = lyrics?.let { JSONObject().put("title", it.fullTitle).put("pages", JSONArray(it.pages)).toString() } ?: ""
+        val ttl = if (lyrics != null) FOUND_TTL else NOT_FOUND_TTL
+
+        try {
+            Launcher.database.redis { it.set(KEY_PREFIX + key, value, SetParams.setParams().px(ttl)) }
+        } catch (e: JedisException) {
+            log.debug("Unable to cache lyrics", e)
+        }
+    }
+
+    /**
+     * Strips the noise that differs between uploads of the same song, such as "(Official Video)" or "[Lyrics]".
+     */
+    fun normalize(title: String): String {
+        return title.toLowerCase()
+            .replace(BRACKETED, " ")
+            .replace(NOISE, " ")
+            .replace(WHITESPACE, " ")
+            .trim()
+    }
+
+    private val BRACKETED = "[(\\[][^)\\]]*(official|lyric|audio|video|visuali[sz]er|hd|hq|4k|remaster)[^)\\]]*[)\\]]".toRegex()
+    private val NOISE = "\\b(official (music )?video|lyrics?( video)?|audio)\\b".toRegex()
+    private val WHITESPACE = "\\s+".toRegex()
+
+    private class Entry(val lyrics: Lyrics?, val expiresAt: Long)
+
+    class Lyrics(val fullTitle: String, val pages: List<String>)
+}
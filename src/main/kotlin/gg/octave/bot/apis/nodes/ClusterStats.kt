@@ -0,0 +1,110 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.apis.nodes
+
+import gg.octave.bot.Launcher
+import java.util.concurrent.TimeUnit
+
+/**
+ * Cluster-wide totals, kept in the `stats-rollup` hash so readers fetch a handful of numbers
+ * instead of parsing every shard's and node's JSON.
+ *
+ * Every node writes its own totals into `stats-node-totals` (fields `<node>:<metric>`) and recomputes
+ * the rollup in the same Lua script, so the rollup only ever reflects complete node updates. Nodes
+ * that haven't reported within [STALE_MS] are left out of the sums.
+ */
+object ClusterStats {
+    private const val TOTALS_KEY = "stats-node-totals"
+    private const val ROLLUP_KEY = "stats-rollup"
+    private val STALE_MS = TimeUnit.SECONDS.toMillis(30)
+
+    private val ROLLUP_SCRIPT = """
+        local totals, rollup = KEYS[1], KEYS[2]
+        local node, now, stale = ARGV[1], tonumber(ARGV[2]), tonumber(ARGV[3])
+
+        redis.call('HSET', totals, node .. ':heartbeat', now)
+        for i = 4, #ARGV, 2 do
+            redis.call('HSET', totals, node .. ':' .. ARGV[i], ARGV[i + 1])
+        end
+
+        local entries = redis.call('HGETALL', totals)
+        local alive, sums, nodes = {}, {}, 0
+
+        for i = 1, #entries, 2 do
+            local n, metric = string.match(entries[i], '^(.-):(.*)$')
+            if metric == 'heartbeat' and now - tonumber(entries[i + 1]) <= stale then
+                alive[n] = true
+                nodes = nodes + 1
+            end
+        end
+
+        for i = 1, #entries, 2 do
+            local n, metric = string.match(entries[i], '^(.-):(.*)$')
+            if metric ~= 'heartbeat' and alive[n] then
+                sums[metric] = (sums[metric] or 0) + tonumber(entries[i + 1])
+            end
+        end
+
+        local args = { 'nodes', nodes, 'updated', now }
+        for metric, sum in pairs(sums) do
+            table.insert(args, metric)
+            table.insert(args, string.format('%d', sum))
+        end
+
+        redis.call('DEL', rollup)
+        redis.call('HMSET', rollup, unpack(args))
+        return nodes
+    """.trimIndent()
+
+    /**
+     * Publishes this node's totals and refreshes the rollup.
+     */
+    fun publish(nodeId: Int, totals: Map<String, Long>) {
+        val args = mutableListOf(nodeId.toString(), System.currentTimeMillis().toString(), STALE_MS.toString())
+        totals.forEach { (metric, value) -> args += listOf(metric, value.toString()) }
+
+        Launcher.database.redis { it.eval(ROLLUP_SCRIPT, listOf(TOTALS_KEY, ROLLUP_KEY), args) }
+    }
+
+    fun totals(): Totals {
+        val rollup = Launcher.database.redis { it.hgetAll(ROLLUP_KEY) }
+        return Totals(rollup.mapValues { it.value.toLongOrNull() ?: 0 })
+    }
+
+    class Totals(private val values: Map<String, Long>) {
+        val nodes get() = this["nodes"]
+        val guilds get() = this[GUILDS]
+        val users get() = this[USERS]
+        val players get() = this[PLAYERS]
+        val usedRam get() = this[USED_RAM]
+
+        operator fun get(metric: String) = values[metric] ?: 0L
+    }
+
+    const val GUILDS = "guilds"
+    const val USERS = "users"
+    const val PLAYERS = "players"
+    const val USED_RAM = "used_ram"
+}
@@ -38,16 +38,27 @@ class NodeInfoPoster(var nodeId: Int) {
             val ramUsedBytes = Runtime.getRuntime().let { it.totalMemory() - it.freeMemory() }
             val ramTotal = Runtime.getRuntime().totalMemory()
 
-            Launcher.database.jedisPool.resource.use {
+            val guilds = Launcher.shardStats.guildCount.toLong()
+            val users = Launcher.shardManager.userCache.size()
+            val players = Launcher.players.size().toLong()
+
+            ClusterStats.publish(nodeId, mapOf(
+                ClusterStats.GUILDS to guilds,
+                ClusterStats.USERS to users,
+                ClusterStats.PLAYERS to players,
+                ClusterStats.USED_RAM to ramUsedBytes
+            ))
+
+            Launcher.database.redis {
                 it.hset("node-stats", nodeId.toString(),
                     JSONObject()
-                        .put("music_players", Launcher.players.size())
+                        .put("music_players", players)
                         .put("uptime", ManagementFactory.getRuntimeMXBean().uptime)
                         .put("total_ram", ramTotal)
                         .put("used_ram", ramUsedBytes)
                         .put("thread_count", Thread.activeCount())
-                        .put("guild_count", Launcher.shardManager.guildCache.size())
-                        .put("cached_users", Launcher.shardManager.userCache.size())
+                        .put("guild_count", guilds)
+                        .put("cached_users", users)
                         .put("shard_slice_start", Launcher.credentials.shardStart)
                         .put("shard_slice_end", Launcher.credentials.shardEnd)
                         .toString()
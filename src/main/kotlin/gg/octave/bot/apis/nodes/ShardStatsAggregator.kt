@@ -0,0 +1,113 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.apis.nodes
+
+import gg.octave.bot.Launcher
+import gg.octave.bot.utils.Scheduler
+import net.dv8tion.jda.api.JDA
+import org.json.JSONObject
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Collects shard status changes in memory and writes every changed shard to the `stats` hash
+ * in a single HSET, so event threads never wait on Redis.
+ */
+class ShardStatsAggregator {
+    private val executor = Executors.newSingleThreadScheduledExecutor()
+    private val dirty = ConcurrentHashMap<Int, JDA>()
+    private val guildCounts = ConcurrentHashMap<Int, AtomicInteger>()
+
+    init {
+        Scheduler.fixedRateScheduleWithSuppression(executor, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS) { flush() }
+    }
+
+    /**
+     * @return The number of guilds across all shards on this node.
+     */
+    val guildCount: Int
+        get() = guildCounts.values.sumBy { it.get() }
+
+    /**
+     * Marks the shard as changed. The guild count is resynced from the cache, which is only
+     * needed when the shard (re)connects, as joins and leaves are counted as they happen.
+     */
+    fun update(jda: JDA, resync: Boolean = false) {
+        if (resync) {
+            counter(jda).set(jda.guildCache.size().toInt())
+        }
+
+        dirty[jda.shardInfo.shardId] = jda
+    }
+
+    fun guildJoined(jda: JDA) {
+        counter(jda).incrementAndGet()
+        update(jda)
+    }
+
+    fun guildLeft(jda: JDA) {
+        counter(jda).decrementAndGet()
+        update(jda)
+    }
+
+    private fun counter(jda: JDA) = guildCounts.computeIfAbsent(jda.shardInfo.shardId) { AtomicInteger() }
+
+    fun flush() {
+        if (dirty.isEmpty()) {
+            return
+        }
+
+        val shards = dirty.keys.toList().mapNotNull { id -> dirty.remove(id) }
+            .filter { it.status != JDA.Status.INITIALIZED }
+
+        if (shards.isEmpty()) {
+            return
+        }
+
+        val entries = shards.associate {
+            val id = it.shardInfo.shardId
+            id.toString() to JSONObject()
+                .put("guild_count", guildCounts[id]?.get() ?: it.guildCache.size())
+                .put("cached_users", it.userCache.size())
+                .put("status", it.status)
+                .put("ping", it.gatewayPing)
+                .toString()
+        }
+
+        try {
+            Launcher.database.redis { it.hset("stats", entries) }
+        } catch (e: Exception) {
+            // Try again on the next flush, unless the shard changed again in the meantime.
+            shards.forEach { dirty.putIfAbsent(it.shardInfo.shardId, it) }
+            throw e
+        }
+    }
+
+    companion object {
+        private const val FLUSH_INTERVAL_MS = 2000L
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.apis.nodes
+
+import gg.octave.bot.Launcher
+import gg.octave.bot.metrics.Metrics
+import gg.octave.bot.utils.Scheduler
+import redis.clients.jedis.StreamEntryID
+import java.lang.management.ManagementFactory
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * Appends a compact snapshot of this node's statistics to a capped Redis stream every
+ * [INTERVAL_SECONDS], so recent trends can be looked at without a time-series store.
+ *
+ * Rates (commands, loads, GC time, cache hit ratio) cover the interval since the previous snapshot.
+ */
+class StatsHistory(private val nodeId: Int) {
+    private val executor = Executors.newSingleThreadScheduledExecutor()
+
+    private var lastGcMillis = gcMillis()
+    private var lastCommands = 0L
+    private var lastLoads = 0L
+    private var lastLookups = 0L
+    private var lastHits = 0L
+
+    fun start() {
+        Scheduler.fixedRateScheduleWithSuppression(executor, INTERVAL_SECONDS, INTERVAL_SECONDS, TimeUnit.SECONDS) { record() }
+    }
+
+    private fun record() {
+        val players = Launcher.players.registry.values
+        val heap = ManagementFactory.getMemoryMXBean().heapMemoryUsage
+
+        val gc = gcMillis()
+        val commands = Metrics.counter("bot.commands_ran").value
+        val loads = Metrics.histogramsNamed("octave_bot.track.load_latency").map { it.count }.sum()
+        val lookups = Metrics.counter("octave_bot.cache.lookups").value
+        val hits = Metrics.counter("octave_bot.cache.hits").value
+        val lookupDelta = lookups - lastLookups
+
+        val snapshot = mapOf(
+            PLAYERS to players.size.toString(),
+            ENCODING to players.count { it.isEncoding }.toString(),
+            HEAP_MB to (heap.used / 1024 / 1024).toString(),
+            GC_MS to (gc - lastGcMillis).toString(),
+            COMMANDS_PER_MIN to perMinute(commands - lastCommands),
+            LOADS_PER_MIN to perMinute(loads - lastLoads),
+            CACHE_HIT_PERCENT to (if (lookupDelta > 0) (hits - lastHits) * 100 / lookupDelta else 0).toString()
+        )
+
+        lastGcMillis = gc
+        lastCommands = commands
+        lastLoads = loads
+        lastLookups = lookups
+        lastHits = hits
+
+        Launcher.database.redis { it.xadd(keyFor(nodeId), StreamEntryID.NEW_ENTRY, snapshot, MAX_ENTRIES, true) }
+    }
+
+    private fun perMinute(delta: Long) = (delta * 60 / INTERVAL_SECONDS).toString()
+
+    private fun gcMillis() = ManagementFactory.getGarbageCollectorMXBeans().sumBy { it.collectionTime.toInt() }.toLong()
+
+    companion object {
+        const val INTERVAL_SECONDS = 30L
+        // ~ a day of history per node. Trimming is approximate (MAXLEN ~), which keeps XADD cheap.
+        private const val MAX_ENTRIES = 2880L
+
+        const val PLAYERS = "players"
+        const val ENCODING = "encoding"
+        const val HEAP_MB = "heap_mb"
+        const val GC_MS = "gc_ms"
+        const val COMMANDS_PER_MIN = "commands_min"
+        const val LOADS_PER_MIN = "loads_min"
+        const val CACHE_HIT_PERCENT = "cache_hit_pct"
+
+        val FIELDS = listOf(PLAYERS, ENCODING, HEAP_MB, GC_MS, COMMANDS_PER_MIN, LOADS_PER_MIN, CACHE_HIT_PERCENT)
+
+        fun keyFor(nodeId: Int) = "stats-history:$nodeId"
+
+        /**
+         * @return The snapshots of the given node from the last [minutes], oldest first.
+         */
+        fun read(nodeId: Int, minutes: Int): List<Map<String, Long>> {
+            val since = StreamEntryID(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(minutes.toLong()), 0)
+            val entries = Launcher.database.redis { it.xrange(keyFor(nodeId), since, null, Int.MAX_VALUE) }
+
+            return entries.map { entry -> entry.fields.mapValues { it.value.toLongOrNull() ?: 0 } }
+        }
+    }
+}
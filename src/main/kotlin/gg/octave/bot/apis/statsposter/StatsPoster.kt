@@ -25,8 +25,8 @@
 package gg.octave.bot.apis.statsposter
 
 import gg.octave.bot.Launcher
+import gg.octave.bot.apis.nodes.ClusterStats
 import gg.octave.bot.apis.statsposter.websites.*
-import org.json.JSONObject
 import org.slf4j.LoggerFactory
 import java.util.concurrent.Executors
 import java.util.concurrent.TimeUnit
@@ -57,13 +57,7 @@ class StatsPoster(botId: String) {
 
     fun postEvery(time: Long, unit: TimeUnit) {
         scheduler.scheduleWithFixedDelay({
-            val guilds = Launcher.database.jedisPool.resource.use { jedis ->
-                (0 until Launcher.credentials.totalShards)
-                    .map { jedis.hget("stats", it.toString()) }
-                    .map(::JSONObject)
-                    .map { it.getLong("guild_count") }
-                    .sum()
-            }
+            val guilds = ClusterStats.totals().guilds
 
             update(guilds)
         }, time, time, unit)
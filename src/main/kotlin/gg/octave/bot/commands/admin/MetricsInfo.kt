@@ -0,0 +1,74 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.commands.admin
+
+import gg.octave.bot.metrics.Metrics
+import gg.octave.bot.utils.TextSplitter
+import me.devoxin.flight.api.Context
+import me.devoxin.flight.api.annotations.Command
+import me.devoxin.flight.api.entities.Cog
+
+class MetricsInfo : Cog {
+    @Command(aliases = ["metric"], description = "View this node's metrics.", developerOnly = true)
+    suspend fun metrics(ctx: Context, filter: String?) {
+        val snapshot = Metrics.snapshot()
+        val matches: (String) -> Boolean = { filter == null || it.contains(filter, true) }
+
+        val histograms = snapshot.histograms.entries
+            .filter { matches(it.key.name) && it.value.count > 0 }
+            .sortedBy { it.key.toString() }
+            .joinToString("\n") { (key, h) ->
+                "%-48.48s %8d %6d %6d %6d %6d".format(key.toString(), h.count, h.percentile(50.0),
+                    h.percentile(95.0), h.percentile(99.0), h.max)
+            }
+
+        val counters = snapshot.counters.entries
+            .filter { matches(it.key.name) }
+            .sortedBy { it.key.toString() }
+            .joinToString("\n") { "%-48.48s %12d".format(it.key.toString(), it.value) }
+
+        val gauges = snapshot.gauges.entries
+            .filter { matches(it.key.name) }
+            .sortedBy { it.key.toString() }
+            .joinToString("\n") { "%-48.48s %12.2f".format(it.key.toString(), it.value) }
+
+        val report = buildString {
+            appendln("HISTOGRAM                                           COUNT    P50    P95    P99    MAX")
+            appendln(histograms.ifEmpty { "None" })
+            appendln()
+            appendln("COUNTER")
+            appendln(counters.ifEmpty { "None" })
+            appendln()
+            appendln("GAUGE")
+            appendln(gauges.ifEmpty { "None" })
+            appendln()
+            append("Cache hit ratio: %.2f%%".format(Metrics.cacheHitRatio * 100))
+        }
+
+        for (page in TextSplitter.split(report, 1900)) {
+            ctx.sendAsync("```prolog\n$page```")
+        }
+    }
+}
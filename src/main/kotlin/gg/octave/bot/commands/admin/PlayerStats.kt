@@ -25,29 +25,22 @@
 package gg.octave.bot.commands.admin
 
 import gg.octave.bot.Launcher
+import gg.octave.bot.apis.nodes.ClusterStats
 import gg.octave.bot.music.MusicManagerV2
-import gg.octave.bot.music.settings.BoostSetting
+import gg.octave.bot.music.stats.FrameStatsCollector
 import me.devoxin.flight.api.Context
 import me.devoxin.flight.api.annotations.Command
+import me.devoxin.flight.api.annotations.SubCommand
 import me.devoxin.flight.api.entities.Cog
-import org.json.JSONObject
 
 class PlayerStats : Cog {
     @Command(aliases = ["ps"], description = "Shows (est) encoding, and total players", developerOnly = true)
     fun playerstats(ctx: Context) {
         val players = Launcher.players.registry.values
-        var musicPlayers = 0L
-
-        Launcher.database.jedisPool.resource.use {
-            val nodeStats = it.hgetAll("node-stats")
-            for (node in nodeStats) {
-                val jsonStats = JSONObject(node.value);
-                musicPlayers += jsonStats.getLong("music_players")
-            }
-        }
+        val musicPlayers = ClusterStats.totals().players
 
         val paused = players.count { it.player.isPaused }
-        val encoding = players.count(::isEncoding)
+        val encoding = players.count(MusicManagerV2::isEncoding)
         val alone = players.count {
             it.guild?.audioManager?.connectedChannel?.members?.none { m -> !m.user.isBot } ?: false
         }
@@ -62,19 +55,38 @@ class PlayerStats : Cog {
                 "**All nodes**: $musicPlayers")
             addField("Source Insight", "**This node:**\n$bySourceFormatted", true)
             addField("Statistics", "**This node:**\n• **$encoding** encoding\n• **$paused** paused\n• **$alone** alone", true)
-        }
-    }
 
-    private fun isEncoding(manager: MusicManagerV2): Boolean {
-        val hasDspFx = manager.dspFilter.let {
-            it.karaokeEnable || it.timescaleEnable || it.tremoloEnable || it.bassBoost != BoostSetting.OFF
+            val sendBuffers = Launcher.audioSendFactory.tierCounts()
+                .map { "• ${it.key}ms: **${it.value}**" }
+                .joinToString("\n")
+            addField("Send Buffers", "**This node:**\n$sendBuffers", true)
         }
-
-        return manager.player.playingTrack != null &&
-            (manager.player.volume != 100 || hasDspFx || !opusSources.any { it in manager.player.playingTrack.info.uri })
     }
 
-    companion object {
-        private val opusSources = listOf("youtube", "soundcloud")
+    @SubCommand(aliases = ["stutter", "underruns"], description = "Lists the players with the most frame loss on this node.")
+    fun worst(ctx: Context, limit: Int = 10) {
+        val collector = Launcher.players.frameStats
+        val worst = collector.worst(limit.coerceIn(1, 25))
+            .joinToString("\n") {
+                val stats = it.frameStats
+                "%20d | %5.1f%% | %6d | %4d | %6s | %6s | %4s | %6s".format(
+                    it.guildId,
+                    stats.windowLossPercent,
+                    stats.windowMissed,
+                    stats.windowLongestStreak,
+                    "${stats.windowLongestGapMs}ms",
+                    "${stats.msSinceLastFrame}ms",
+                    if (stats.bufferFill >= 0) "${stats.bufferFill}%" else "-",
+                    Launcher.audioSendFactory.bufferDurationOf(it.guildId)?.let { b -> "${b}ms" } ?: "-"
+                )
+            }
+            .takeIf { it.isNotEmpty() }
+            ?: return ctx.send("No players have missed frames in the last ${FrameStatsCollector.WINDOW_SECONDS} seconds.")
+
+        ctx.send("```prolog\n" +
+            "Node loss: %.2f%% (%d missed, %d provided over %ds)\n\n".format(
+                collector.nodeLossPercent, collector.nodeMissed, collector.nodeProvided, FrameStatsCollector.WINDOW_SECONDS) +
+            "               GUILD |   LOSS | MISSED | STRK |    GAP |   LAST | FILL | SENDBUF\n" +
+            "$worst```")
     }
 }
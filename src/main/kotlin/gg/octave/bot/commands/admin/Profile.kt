@@ -0,0 +1,117 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.commands.admin
+
+import gg.octave.bot.metrics.CommandProfiler
+import gg.octave.bot.metrics.Histogram
+import gg.octave.bot.metrics.Metrics
+import gg.octave.bot.music.tracing.LoadTrace
+import gg.octave.bot.utils.TextSplitter
+import me.devoxin.flight.api.Context
+import me.devoxin.flight.api.annotations.Command
+import me.devoxin.flight.api.annotations.SubCommand
+import me.devoxin.flight.api.entities.Cog
+import java.time.Instant
+import java.util.concurrent.TimeUnit
+
+class Profile : Cog {
+    @Command(aliases = ["prof"], description = "Shows the slowest commands and phases on this node.", developerOnly = true)
+    fun profile(ctx: Context, limit: Int = 10) {
+        val snapshot = Metrics.snapshot()
+
+        val commands = snapshot.histogramsNamed("octave_bot.command.latency").entries
+            .sortedByDescending { it.value.percentile(99.0) }
+            .take(limit)
+            .joinToString("\n") { formatRow(it.key.tag("command") ?: "unknown", it.value) }
+
+        val phases = snapshot.histogramsNamed("octave_bot.command.phase").entries
+            .sortedByDescending { it.value.percentile(99.0) }
+            .take(limit)
+            .joinToString("\n") { formatRow("${it.key.tag("command")}/${it.key.tag("phase")}", it.value) }
+
+        ctx.send {
+            setColor(0x9570D3)
+            setTitle("Command Profile")
+            addField("Slowest Commands", "```prolog\n${HEADER}\n${commands.ifEmpty { "None" }}```", false)
+            addField("Slowest Phases", "```prolog\n${HEADER}\n${phases.ifEmpty { "None" }}```", false)
+            setFooter("Times in ms. See ${ctx.trigger}profile slow for the slow command log.")
+        }
+    }
+
+    @SubCommand(aliases = ["log"], description = "Shows recent invocations that went over the slow threshold.")
+    suspend fun slow(ctx: Context, limit: Int = 15) {
+        val entries = CommandProfiler.slowest.take(limit)
+
+        if (entries.isEmpty()) {
+            return ctx.send("No slow commands logged.")
+        }
+
+        val log = entries.joinToString("\n") {
+            val phases = it.phases.joinToString(" ") { (phase, nanos) -> "$phase=${TimeUnit.NANOSECONDS.toMillis(nanos)}" }
+            "[${Instant.ofEpochMilli(it.timestamp)}] ${it.command} guild=${it.guildId} " +
+                "total=${TimeUnit.NANOSECONDS.toMillis(it.totalNanos)} $phases " +
+                "db=${it.dbCalls.get()} redis=${it.redisCalls.get()}${if (it.failed) " FAILED" else ""}"
+        }
+
+        for (page in TextSplitter.split(log, 1900)) {
+            ctx.sendAsync("```prolog\n$page```")
+        }
+    }
+
+    @SubCommand(description = "Shows where track loads spend their time, and recent slow loads.")
+    suspend fun loads(ctx: Context, limit: Int = 10) {
+        val snapshot = Metrics.snapshot()
+        val stages = snapshot.histogramsNamed("octave_bot.load.stage").entries
+            .sortedByDescending { it.value.percentile(99.0) }
+            .take(limit)
+            .joinToString("\n") { formatRow(it.key.tag("stage") ?: "unknown", it.value) }
+
+        val probed = snapshot.histogramsNamed("octave_bot.load.probed").entries
+            .sortedByDescending { it.value.count }
+            .joinToString("\n") { "%-24.24s %6d %5.1f".format(it.key.tag("source"), it.value.count, it.value.mean) }
+
+        val slow = LoadTrace.slowest.take(limit).joinToString("\n") { trace ->
+            val spans = trace.spans.toList().joinToString(" ") { "${it.name}=${TimeUnit.NANOSECONDS.toMillis(it.nanos)}" }
+            "[${Instant.ofEpochMilli(trace.timestamp)}] ${trace.identifier.take(60)} -> ${trace.claimedBy ?: "none"}/${trace.result} " +
+                "total=${TimeUnit.NANOSECONDS.toMillis(trace.totalNanos)} probed=${trace.probed} $spans"
+        }
+
+        val report = "STAGE${HEADER.removePrefix("NAME")}\n${stages.ifEmpty { "None" }}\n\n" +
+            "CLAIMED BY                 LOADS PROBED\n${probed.ifEmpty { "None" }}\n\n" +
+            "SLOW LOADS\n${slow.ifEmpty { "None" }}"
+
+        for (page in TextSplitter.split(report, 1900)) {
+            ctx.sendAsync("```prolog\n$page```")
+        }
+    }
+
+    private fun formatRow(name: String, h: Histogram.Snapshot): String {
+        return "%-24.24s %6d %5d %5d %6d".format(name, h.count, h.percentile(50.0), h.percentile(99.0), h.max)
+    }
+
+    companion object {
+        private const val HEADER = "NAME                      COUNT   P50   P99    MAX"
+    }
+}
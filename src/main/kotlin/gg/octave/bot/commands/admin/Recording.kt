@@ -0,0 +1,57 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.commands.admin
+
+import gg.octave.bot.Launcher
+import gg.octave.bot.metrics.jfr.JfrRecorder
+import me.devoxin.flight.api.Context
+import me.devoxin.flight.api.annotations.Command
+import me.devoxin.flight.api.annotations.SubCommand
+import me.devoxin.flight.api.entities.Cog
+import java.nio.file.Files
+import java.time.Duration
+
+class Recording : Cog {
+    @Command(aliases = ["jfr"], description = "Shows the state of the continuous flight recording.", developerOnly = true)
+    fun recording(ctx: Context) {
+        if (!JfrRecorder.isRecording) {
+            return ctx.send("Flight recording is disabled on this node. Enable it in the `jfr` section of bot.conf.")
+        }
+
+        ctx.send("Flight recording is running, keeping up to **${Launcher.configuration.jfrMaxAgeText}**. " +
+            "Use `${ctx.trigger}recording dump [minutes]` to write it to disk.")
+    }
+
+    @SubCommand(description = "Dumps the last N minutes of the flight recording to disk.")
+    fun dump(ctx: Context, minutes: Int = 10) {
+        if (!JfrRecorder.isRecording) {
+            return ctx.send("Flight recording is disabled on this node.")
+        }
+
+        val path = JfrRecorder.dump(Duration.ofMinutes(minutes.toLong().coerceAtLeast(1)))
+        val size = Files.size(path) / 1024 / 1024
+        ctx.send("Dumped the last **$minutes** minutes to `${path.toAbsolutePath()}` (${size}MB).")
+    }
+}
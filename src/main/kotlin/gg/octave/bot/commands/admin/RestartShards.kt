@@ -24,6 +24,8 @@
 
 package gg.octave.bot.commands.admin
 
+import gg.octave.bot.Launcher
+import gg.octave.bot.utils.TextSplitter
 import me.devoxin.flight.api.Context
 import me.devoxin.flight.api.annotations.Command
 import me.devoxin.flight.api.annotations.SubCommand
@@ -37,8 +39,9 @@ class RestartShards : Cog {
             return ctx.send("**$shardId** should be equal to or higher than 0, and less than ${ctx.jda.shardInfo.shardTotal}.")
         }
 
+        val players = Launcher.players.playerCount(shardId)
         ctx.jda.shardManager?.restart(shardId)
-        ctx.send("Rebooting shard **$shardId**...")
+        ctx.send("Rebooting shard **$shardId**, interrupting **$players** players...")
     }
 
     @SubCommand(description = "Restart any shards that aren't connected.")
@@ -46,13 +49,38 @@ class RestartShards : Cog {
         val deadShards = ctx.jda.shardManager?.shards?.filter { it.status != JDA.Status.CONNECTED }?.takeIf { it.isNotEmpty() }
             ?: return ctx.send("There are no dead shards.")
 
-        deadShards.forEach { it.shardManager?.restart(it.shardInfo.shardId) }
-        ctx.send("Queued **${deadShards.size}** shards for reboot.")
+        val order = restartOrder(deadShards.map { it.shardInfo.shardId })
+        order.forEach { ctx.jda.shardManager?.restart(it) }
+        ctx.send("Queued **${deadShards.size}** shards for reboot, fewest players first.")
     }
 
     @SubCommand(description = "Restart all shards.")
     fun all(ctx: Context) {
-        ctx.send("Rebooting all **${ctx.jda.shardInfo.shardTotal}** shards...")
-        ctx.jda.shardManager?.restart()
+        val shardIds = ctx.jda.shardManager?.shards?.map { it.shardInfo.shardId }
+            ?: return
+
+        ctx.send("Rebooting all **${shardIds.size}** shards, fewest players first...")
+        restartOrder(shardIds).forEach { ctx.jda.shardManager?.restart(it) }
+    }
+
+    @SubCommand(aliases = ["preview"], description = "Shows the order shards would be restarted in, and the players each would interrupt.")
+    fun plan(ctx: Context) {
+        val shardIds = ctx.jda.shardManager?.shards?.map { it.shardInfo.shardId }
+            ?: return
+
+        val order = restartOrder(shardIds)
+        val plan = order.joinToString("\n") { "%4d | %5d".format(it, Launcher.players.playerCount(it)) }
+        val interrupted = order.sumBy(Launcher.players::playerCount)
+
+        for (page in TextSplitter.split(plan, 1900)) {
+            ctx.send("```prolog\nSHARD | PLAYERS\n$page```")
+        }
+
+        ctx.send("Restarting every shard would interrupt **$interrupted** players.")
     }
+
+    /**
+     * Orders shards so the ones interrupting the fewest players are restarted first.
+     */
+    private fun restartOrder(shardIds: List<Int>) = shardIds.sortedBy(Launcher.players::playerCount)
 }
\ No newline at end of file
@@ -0,0 +1,80 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.commands.admin
+
+import gg.octave.bot.Launcher
+import gg.octave.bot.music.routeplanner.AddressHealth
+import me.devoxin.flight.api.Context
+import me.devoxin.flight.api.annotations.Command
+import me.devoxin.flight.api.annotations.SubCommand
+import me.devoxin.flight.api.entities.Cog
+
+class RoutePlanner : Cog {
+    @Command(aliases = ["ipv6"], description = "Shows the health of the IPv6 block.", developerOnly = true)
+    fun routeplanner(ctx: Context) {
+        val planner = Launcher.players.playerManager.routePlanner
+            ?: return ctx.send("No IPv6 block is configured on this node.")
+
+        val addresses = planner.addresses
+        val (quarantined, healthy) = addresses.partition { it.isQuarantined }
+        val ranked = healthy.sortedByDescending { it.score }
+
+        val body = buildString {
+            appendln("Block: ${Launcher.configuration.ipv6Block}")
+            appendln("Addresses: ${addresses.size} (${healthy.size} healthy, ${quarantined.size} quarantined)")
+            appendln()
+            appendln("Best:")
+            ranked.take(5).forEach { appendln(describe(it)) }
+            appendln()
+            appendln("Worst:")
+            (quarantined.sortedByDescending { it.quarantinedUntil } + ranked.reversed()).take(5).forEach { appendln(describe(it)) }
+        }
+
+        ctx.send("```\n$body```")
+    }
+
+    @SubCommand(description = "Takes every address out of quarantine.")
+    fun reset(ctx: Context) {
+        val planner = Launcher.players.playerManager.routePlanner
+            ?: return ctx.send("No IPv6 block is configured on this node.")
+
+        planner.reset()
+        ctx.send("Reset the health of ${planner.addresses.size} addresses.")
+    }
+
+    private fun describe(health: AddressHealth): String {
+        val state = if (health.isQuarantined) {
+            val remaining = (health.quarantinedUntil - System.currentTimeMillis()) / 1000
+            "quarantined ${remaining}s (${health.lastFailure?.name?.toLowerCase()})"
+        } else {
+            "score %.2f".format(health.score)
+        }
+
+        return "%s  %s, %dms, %d ok / %d 429 / %d captcha / %d error".format(
+            health.address.hostAddress, state, health.latencyMs.toLong(), health.successes.get(),
+            health.rateLimits.get(), health.captchas.get(), health.errors.get()
+        )
+    }
+}
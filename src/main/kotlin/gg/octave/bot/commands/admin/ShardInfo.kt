@@ -25,7 +25,6 @@
 package gg.octave.bot.commands.admin
 
 import gg.octave.bot.Launcher
-import gg.octave.bot.utils.TextSplitter
 import me.devoxin.flight.api.Context
 import me.devoxin.flight.api.annotations.Command
 import me.devoxin.flight.api.entities.Cog
@@ -33,33 +32,36 @@ import org.json.JSONObject
 
 class ShardInfo : Cog {
     @Command(aliases = ["shards", "shard"], description = "View shard information.", developerOnly = true)
-    suspend fun shardinfo(ctx: Context) {
-        var stats: Map<String, String> = HashMap()
-        Launcher.database.jedisPool.resource.use {
-            stats = it.hgetAll("stats")
+    suspend fun shardinfo(ctx: Context, page: Int = 1) {
+        val total = Launcher.credentials.totalShards
+        val pages = (total + SHARDS_PER_PAGE - 1) / SHARDS_PER_PAGE
+        val current = page.coerceIn(1, pages.coerceAtLeast(1))
+        val ids = ((current - 1) * SHARDS_PER_PAGE until (current * SHARDS_PER_PAGE).coerceAtMost(total)).toList()
+
+        if (ids.isEmpty()) {
+            return ctx.send("No shards to show.")
         }
 
-        val status = stats.entries.sortedBy { it.key.toInt() }
-            .joinToString("\n") { formatInfo(it.key.toInt(), stats.size, JSONObject(it.value)) }
-        val pages = TextSplitter.split(status, 1920)
+        val stats = Launcher.database.redis { it.hmget("stats", *ids.map(Int::toString).toTypedArray()) }
+        val status = ids.zip(stats)
+            .joinToString("\n") { (id, json) -> json?.let { formatInfo(id, JSONObject(it)) } ?: "%3d | %9.9s |".format(id, "UNKNOWN") }
 
-        for (page in pages) {
-            ctx.sendAsync("```prolog\n ID |    STATUS |    PING | GUILDS |  USERS |  VC\n$page```")
-        }
+        ctx.sendAsync("```prolog\n ID |    STATUS |    PING | GUILDS |  USERS |  VC\n$status\n\nPage $current/$pages```")
     }
 
-    private fun formatInfo(id: Int, total: Int, json: JSONObject): String {
+    private fun formatInfo(id: Int, json: JSONObject): String {
         return "%3d | %9.9s | %7.7s | %6d | %6d | %3d".format(
             id,
             json.getString("status"),
             "${json.getLong("ping")}ms",
             json.getLong("guild_count"),
             json.getLong("cached_users"),
-            Launcher.players.registry.values.count { getShardIdForGuild(it.guildId, total) == id }
+            Launcher.players.playerCount(id)
         )
     }
 
-    private fun getShardIdForGuild(guildId: Long, shardCount: Int): Int {
-        return ((guildId shr 22) % shardCount).toInt()
+    companion object {
+        // Keeps a page within a single message.
+        private const val SHARDS_PER_PAGE = 30
     }
 }
@@ -24,14 +24,23 @@
 
 package gg.octave.bot.commands.admin
 
+import gg.octave.bot.Launcher
 import me.devoxin.flight.api.Context
 import me.devoxin.flight.api.annotations.Command
+import me.devoxin.flight.api.annotations.SubCommand
 import me.devoxin.flight.api.entities.Cog
 import kotlin.system.exitProcess
 
 class Shutdown : Cog {
-    @Command(description = "Shuts down the bot.", developerOnly = true)
+    @Command(description = "Shuts down the bot, handing active players over to the next node.", developerOnly = true)
     fun shutdown(ctx: Context) {
+        val drained = Launcher.players.migrator.drain()
+        ctx.messageChannel.sendMessage("Drained **$drained** players. Shutting down...").complete()
+        hard(ctx)
+    }
+
+    @SubCommand(description = "Shuts down the bot without saving active players.")
+    fun hard(ctx: Context) {
         ctx.jda.shardManager?.shutdown() ?: ctx.jda.shutdown()
         exitProcess(21)
     }
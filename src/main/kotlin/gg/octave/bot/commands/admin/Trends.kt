@@ -0,0 +1,70 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.commands.admin
+
+import gg.octave.bot.Launcher
+import gg.octave.bot.apis.nodes.StatsHistory
+import me.devoxin.flight.api.Context
+import me.devoxin.flight.api.annotations.Command
+import me.devoxin.flight.api.entities.Cog
+
+class Trends : Cog {
+    @Command(aliases = ["history"], description = "Shows recent statistics trends for a node.", developerOnly = true)
+    fun trends(ctx: Context, minutes: Int = 60, node: Int = Launcher.configuration.nodeNumber) {
+        val snapshots = StatsHistory.read(node, minutes.coerceIn(1, 1440))
+
+        if (snapshots.isEmpty()) {
+            return ctx.send("No history for node **$node** in the last **$minutes** minutes.")
+        }
+
+        val rows = StatsHistory.FIELDS.joinToString("\n") { field ->
+            val values = snapshots.map { it[field] ?: 0L }
+            "%-13s %7d %7d %7d %7d  %s".format(field, values.min(), values.average().toLong(), values.max(), values.last(), sparkline(values))
+        }
+
+        ctx.send("```prolog\nNode $node, last $minutes minutes (${snapshots.size} snapshots, ${StatsHistory.INTERVAL_SECONDS}s apart)\n\n" +
+            "FIELD             MIN     AVG     MAX    LAST  TREND\n$rows```")
+    }
+
+    /**
+     * Buckets the values into at most [SPARKLINE_WIDTH] columns, showing each bucket's average.
+     */
+    private fun sparkline(values: List<Long>): String {
+        val bucketSize = (values.size + SPARKLINE_WIDTH - 1) / SPARKLINE_WIDTH
+        val buckets = values.chunked(bucketSize) { it.average() }
+        val min = buckets.min() ?: 0.0
+        val range = (buckets.max() ?: 0.0) - min
+
+        return buckets.joinToString("") {
+            val level = if (range == 0.0) 0 else ((it - min) / range * (BARS.length - 1)).toInt()
+            BARS[level].toString()
+        }
+    }
+
+    companion object {
+        private const val SPARKLINE_WIDTH = 24
+        private const val BARS = "▁▂▃▄▅▆▇█"
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.commands.admin
+
+import gg.octave.bot.Launcher
+import gg.octave.bot.music.sources.caching.CacheWarmer
+import me.devoxin.flight.api.Context
+import me.devoxin.flight.api.annotations.Command
+import me.devoxin.flight.api.annotations.SubCommand
+import me.devoxin.flight.api.entities.Cog
+
+class Warmup : Cog {
+    @Command(description = "Shows the progress of the track cache warm-up.", developerOnly = true)
+    fun warmup(ctx: Context) {
+        val progress = CacheWarmer.progress
+
+        if (progress.total == 0 && !CacheWarmer.isRunning) {
+            return ctx.send("The cache hasn't been warmed on this node. Use `${ctx.trigger}warmup start [size]` to start.")
+        }
+
+        val state = if (CacheWarmer.isRunning) "Running" else "Finished"
+        ctx.send("$state: **${progress.done}/${progress.total}** identifiers " +
+            "(${progress.warmed} warmed, ${progress.skipped} already cached, ${progress.failed} failed).")
+    }
+
+    @SubCommand(description = "Warms the track cache with the N most played identifiers.")
+    fun start(ctx: Context, size: Int = Launcher.configuration.warmupSize) {
+        if (!CacheWarmer.start(size.coerceIn(1, 10000))) {
+            return ctx.send("A warm-up is already running, cancel it first.")
+        }
+
+        ctx.send("Warming the track cache with the top **$size** identifiers.")
+    }
+
+    @SubCommand(description = "Cancels the running warm-up.")
+    fun cancel(ctx: Context) {
+        if (!CacheWarmer.isRunning) {
+            return ctx.send("There's no warm-up running.")
+        }
+
+        CacheWarmer.cancel()
+        ctx.send("Cancelled the warm-up.")
+    }
+}
@@ -27,6 +27,7 @@ package gg.octave.bot.commands.general
 import com.jagrosh.jdautilities.paginator
 import com.sun.management.OperatingSystemMXBean
 import gg.octave.bot.Launcher
+import gg.octave.bot.apis.nodes.ClusterStats
 import gg.octave.bot.utils.Capacity
 import gg.octave.bot.utils.OctaveBot
 import gg.octave.bot.utils.Utils
@@ -60,30 +61,9 @@ class BotInfo : Cog {
         val ramUsedBytes = Runtime.getRuntime().let { it.totalMemory() - it.freeMemory() }
         val ramUsedCalculated = Capacity.calculate(ramUsedBytes)
         val ramUsedFormatted = dpFormatter.format(ramUsedCalculated.amount)
-        var guilds = 0L
-        var users = 0L
-        var musicPlayers = 0L
-        var totalNodes = 0L
-        var totalMemory = 0L
+        val totals = ClusterStats.totals()
 
-        Launcher.database.jedisPool.resource.use {
-            val stats = it.hgetAll("stats")
-            for (shard in stats) {
-                val jsonStats = JSONObject(shard.value);
-                guilds += jsonStats.getLong("guild_count")
-                users += jsonStats.getLong("cached_users")
-            }
-
-            val nodeStats = it.hgetAll("node-stats")
-            for (node in nodeStats) {
-                val jsonStats = JSONObject(node.value);
-                musicPlayers += jsonStats.getLong("music_players")
-                totalMemory += jsonStats.getLong("used_ram")
-                totalNodes++
-            }
-        }
-
-        val totalRamCalculated = Capacity.calculate(totalMemory)
+        val totalRamCalculated = Capacity.calculate(totals.usedRam)
         val totalRamFormatted = dpFormatter.format(totalRamCalculated.amount)
 
         ctx.send {
@@ -96,10 +76,10 @@ class BotInfo : Cog {
 
             addField("CPU Usage", "${procCpuUsage}% JVM\n${sysCpuUsage}% SYS", true)
             addField("RAM Usage", "$ramUsedFormatted${ramUsedCalculated.unit}\nAll: $totalRamFormatted${totalRamCalculated.unit}", true)
-            addField("Guilds", guilds.toString(), true)
-            addField("Voice Connections", musicPlayers.toString(), true)
+            addField("Guilds", totals.guilds.toString(), true)
+            addField("Voice Connections", totals.players.toString(), true)
 
-            addField("Cached Users", users.toString(), true)
+            addField("Cached Users", totals.users.toString(), true)
             addField("Uptime", "${d}d ${h % 24}h ${m % 60}m ${s % 60}s", true)
 
             val general = buildString {
@@ -108,7 +88,7 @@ class BotInfo : Cog {
                 append("Library: **[JDA ${JDAInfo.VERSION}](${JDAInfo.GITHUB})**\n")
             }
             addField("General", general, true)
-            setFooter("${Thread.activeCount()} threads | Current Shard: ${ctx.jda.shardInfo.shardId} | Current Node: ${ctx.config.nodeNumber + 1} / $totalNodes")
+            setFooter("${Thread.activeCount()} threads | Current Shard: ${ctx.jda.shardInfo.shardId} | Current Node: ${ctx.config.nodeNumber + 1} / ${totals.nodes}")
         }
     }
 
@@ -121,7 +101,7 @@ class BotInfo : Cog {
                 setDescription("Per-node breakdown of the bot statistics.\nA node contains a set amount of shards.\n" +
                     "**Current Node**: ${Launcher.configuration.nodeNumber} (${Launcher.configuration.nodeNumber + 1})")
                 setColor(ctx.selfMember?.color)
-                Launcher.database.jedisPool.resource.use {
+                Launcher.database.redis {
                     val nodeStats = it.hgetAll("node-stats")
                     for (node in nodeStats) {
                         val stats = JSONObject(node.value);
@@ -36,10 +36,15 @@ import gg.octave.bot.db.guilds.UserData
 import gg.octave.bot.db.music.CustomPlaylist
 import gg.octave.bot.db.premium.PremiumGuild
 import gg.octave.bot.db.premium.PremiumUser
+import gg.octave.bot.metrics.CommandProfiler
+import gg.octave.bot.metrics.Metrics
+import gg.octave.bot.metrics.jfr.DatabaseCallEvent
+import gg.octave.bot.metrics.jfr.JfrRecorder
 import org.redisson.Redisson
 import org.redisson.api.RedissonClient
 import org.redisson.config.Config
 import org.slf4j.LoggerFactory
+import redis.clients.jedis.Jedis
 import redis.clients.jedis.JedisPool
 import redis.clients.jedis.JedisPoolConfig
 import redis.clients.jedis.Protocol
@@ -101,7 +106,7 @@ class Database(private val name: String) {
     fun getPremiumKey(id: String) = get("keys", id, PremiumKey::class.java)
     fun getUserData(id: String) = get("users", id, UserData::class.java)
     fun getPatreonEntry(id: String) = get("patreon", id, PatreonEntry::class.java)
-    fun hasPremiumUser(id: String) = isOpen && r.table("premiumusers")[id].coerceTo("bool").run(conn)
+    fun hasPremiumUser(id: String) = isOpen && rethink { r.table("premiumusers")[id].coerceTo("bool").run<Boolean>(conn) }
 
     fun getPremiumUser(id: String): PremiumUser = query(PremiumUser::class.java) {
         table("premiumusers")[id].default_(r.hashMap("id", id).with("pledgeAmount", "0.0"))
@@ -133,8 +138,25 @@ class Database(private val name: String) {
 
     fun close() = conn.close()
 
-    operator fun <T> get(table: String, id: String, cls: Class<T>): T? = if (isOpen) r.table(table)[id].run(conn, cls) else null
-    fun <T, P> query(cls: Class<P>, q: RethinkDB.() -> ReqlAst): T? = if (!isOpen) null else r.q().run<T, P>(conn, cls)
+    operator fun <T> get(table: String, id: String, cls: Class<T>): T? = if (isOpen) rethink { r.table(table)[id].run(conn, cls) } else null
+    fun <T, P> query(cls: Class<P>, q: RethinkDB.() -> ReqlAst): T? = if (!isOpen) null else rethink { r.q().run<T, P>(conn, cls) }
+
+    /**
+     * Borrows a Redis connection for the duration of the block, recording the call latency.
+     */
+    fun <T> redis(block: (Jedis) -> T): T {
+        CommandProfiler.redisCall()
+        return JfrRecorder.record({ DatabaseCallEvent().apply { database = "redis" } }) {
+            Metrics.time("octave_bot.db.latency", "db:redis") { jedisPool.resource.use(block) }
+        }
+    }
+
+    private inline fun <T> rethink(block: () -> T): T {
+        CommandProfiler.dbCall()
+        return JfrRecorder.record({ DatabaseCallEvent().apply { database = "rethink" } }) {
+            Metrics.time("octave_bot.db.latency", "db:rethink", block = block)
+        }
+    }
 
     companion object {
         private val log = LoggerFactory.getLogger(this::class.java)
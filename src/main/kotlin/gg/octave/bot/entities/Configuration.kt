@@ -41,6 +41,9 @@ class Configuration(file: File) {
     val prefix: String = config["commands", "prefix"].getString("_")
     val admins: List<Long> = config["commands", "administrators"].getList(TypeToken.of(Long::class.javaObjectType))
 
+    val slowCommandThresholdText: String = config["commands", "slow threshold"].getString("1 second")
+    val slowCommandThreshold: Duration = slowCommandThresholdText.toDuration()
+
     // +--------------+
     // Bot Settings
     // +--------------+
@@ -62,6 +65,8 @@ class Configuration(file: File) {
     val musicEnabled = config["music", "enabled"].getBoolean(true)
     val searchEnabled = config["music", "search"].getBoolean(true)
     val bufferDuration = config["music", "buffer"].getInt(800)
+    val bufferMinDuration = config["music", "buffer min"].getInt(bufferDuration / 2)
+    val bufferMaxDuration = config["music", "buffer max"].getInt(bufferDuration * 2)
 
     val queueLimit = config["music", "queue limit"].getInt(20)
     val musicLimit = config["music", "limit"].getInt(500)
@@ -81,4 +86,54 @@ class Configuration(file: File) {
     val votePlayDurationText: String = config["music", "vote play duration"].getString("20 seconds")
     val votePlayDuration: Duration = voteSkipDurationText.toDuration()
 
+    // +--------------+
+    // HTTP Settings
+    // +--------------+
+    val httpConnectTimeoutText: String = config["http", "connect timeout"].getString("5 seconds")
+    val httpConnectTimeout: Duration = httpConnectTimeoutText.toDuration()
+    val httpReadTimeoutText: String = config["http", "read timeout"].getString("15 seconds")
+    val httpReadTimeout: Duration = httpReadTimeoutText.toDuration()
+    val httpMaxRetries = config["http", "max retries"].getInt(2)
+    val httpMaxRequestsPerHost = config["http", "max requests per host"].getInt(8)
+
+    // +--------------+
+    // Metrics Settings
+    // +--------------+
+    val prometheusEnabled = config["metrics", "prometheus"].getBoolean(false)
+    val prometheusHost: String = config["metrics", "host"].getString("127.0.0.1")
+    val prometheusPort = config["metrics", "port"].getInt(9100)
+
+    // +--------------+
+    // JFR Settings
+    // +--------------+
+    val jfrEnabled = config["jfr", "enabled"].getBoolean(false)
+    val jfrSettings: String = config["jfr", "settings"].getString("default")
+    val jfrMaxAgeText: String = config["jfr", "max age"].getString("30 minutes")
+    val jfrMaxAge: Duration = jfrMaxAgeText.toDuration()
+    val jfrMaxSizeMb = config["jfr", "max size"].getLong(256)
+    val jfrDumpDirectory: String = config["jfr", "dump directory"].getString("recordings")
+
+    // +--------------+
+    // Cache Warm-up Settings
+    // +--------------+
+    val warmupEnabled = config["cache warmup", "enabled"].getBoolean(true)
+    val warmupSize = config["cache warmup", "size"].getInt(500)
+    val warmupRate = config["cache warmup", "rate"].getDouble(4.0)
+
+    // +--------------+
+    // Attachment Cache Settings
+    // +--------------+
+    val attachmentCacheEnabled = config["attachments", "cache"].getBoolean(true)
+    val attachmentCacheDirectory: String = config["attachments", "directory"].getString("attachment-cache")
+    val attachmentCacheMaxSizeMb = config["attachments", "max size"].getLong(1024)
+    val attachmentCacheMaxFileMb = config["attachments", "max file size"].getLong(64)
+
+    // +--------------+
+    // Opus Cache Settings
+    // +--------------+
+    val opusCacheEnabled = config["opus cache", "enabled"].getBoolean(false)
+    val opusCacheDirectory: String = config["opus cache", "directory"].getString("opus-cache")
+    val opusCacheMaxSizeMb = config["opus cache", "max size"].getLong(4096)
+    val opusCacheMaxRecordings = config["opus cache", "max recordings"].getInt(8)
+
 }
@@ -24,7 +24,6 @@
 
 package gg.octave.bot.entities
 
-import com.sedmelluq.discord.lavaplayer.jdaudp.NativeAudioSendFactory
 import gg.octave.bot.Launcher
 import gg.octave.bot.utils.IntentHelper
 import net.dv8tion.jda.api.entities.Activity
@@ -69,9 +68,10 @@ class ExtendedShardManager(private val shardManager: ShardManager) : ShardManage
                     setShardsTotal(credentials.totalShards)
                     setShards(credentials.shardStart, Launcher.credentials.shardEnd - 1)
                     setMaxReconnectDelay(32)
+                    setEnableShutdownHook(false) // Launcher's hook drains players before shutting the shards down.
 
                     // Audio
-                    setAudioSendFactory(NativeAudioSendFactory(configuration.bufferDuration))
+                    setAudioSendFactory(Launcher.audioSendFactory)
 
                     // Performance
                     setBulkDeleteSplittingEnabled(false)
@@ -26,11 +26,12 @@ package gg.octave.bot.entities.framework
 
 import gg.octave.bot.Launcher
 import gg.octave.bot.db.OptionsRegistry
+import gg.octave.bot.metrics.CommandProfiler
 import me.devoxin.flight.api.entities.PrefixProvider
 import net.dv8tion.jda.api.entities.Message
 
 class DefaultPrefixProvider : PrefixProvider {
-    override fun provide(message: Message): List<String> {
+    override fun provide(message: Message): List<String> = CommandProfiler.timePrefix(message) {
         val guildSettings = OptionsRegistry.ofGuild(message.guild)
         val prefixes = mutableListOf(
             "${message.jda.selfUser.name.toLowerCase()} ",
@@ -42,6 +43,6 @@ class DefaultPrefixProvider : PrefixProvider {
             ?: Launcher.configuration.prefix
 
         prefixes.add(customPrefix)
-        return prefixes.toList()
+        prefixes.toList()
     }
 }
@@ -26,6 +26,9 @@ package gg.octave.bot.listeners
 
 import gg.octave.bot.Launcher
 import gg.octave.bot.db.OptionsRegistry
+import gg.octave.bot.metrics.CommandProfiler
+import gg.octave.bot.metrics.Metrics
+import gg.octave.bot.music.sources.caching.CacheWarmer
 import net.dv8tion.jda.api.EmbedBuilder
 import net.dv8tion.jda.api.JDA
 import net.dv8tion.jda.api.events.*
@@ -33,7 +36,6 @@ import net.dv8tion.jda.api.events.guild.GuildJoinEvent
 import net.dv8tion.jda.api.events.guild.GuildLeaveEvent
 import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent
 import net.dv8tion.jda.api.hooks.EventListener
-import org.json.JSONObject
 import org.slf4j.LoggerFactory
 import java.awt.Color
 import java.time.OffsetDateTime
@@ -58,6 +60,8 @@ class BotListener : EventListener {
 
     private fun onGuildMessageReceived(event: GuildMessageReceivedEvent) {
         if (event.author.isBot && event.author === event.jda.selfUser) {
+            CommandProfiler.messageSent(event.channel.idLong)
+
             val guildOptions = OptionsRegistry.ofGuild(event.guild)
             if (guildOptions.command.isAutoDelete) {
                 val deleteDelay = guildOptions.command.autoDeleteDelay.takeIf { it > 0 }
@@ -68,6 +72,8 @@ class BotListener : EventListener {
     }
 
     private fun onGuildJoin(event: GuildJoinEvent) {
+        Launcher.shardStats.guildJoined(event.jda)
+
         //Don't fire this if the SelfMember joined a longish time ago. This avoids discord fuckups.
         if (event.guild.selfMember.timeJoined.isBefore(OffsetDateTime.now().minusSeconds(30))) return
 
@@ -91,20 +97,13 @@ class BotListener : EventListener {
 
         channel.sendMessage(embedBuilder.build()).queue { it.delete().queueAfter(1, TimeUnit.MINUTES) }
 
-        Launcher.datadog.gauge("octave_bot.guilds", Launcher.shardManager.guildCache.size())
-        Launcher.datadog.gauge("octave_bot.users", Launcher.shardManager.userCache.size())
-        Launcher.datadog.gauge("octave_bot.players", Launcher.players.size().toLong())
-        Launcher.datadog.incrementCounter("octave_bot.guildJoin")
-        postStats(event.jda)
+        Metrics.counter("octave_bot.guildJoin", shardTag(event.jda)).increment()
     }
 
     private fun onGuildLeave(event: GuildLeaveEvent) {
         Launcher.players.destroy(event.guild)
-        Launcher.datadog.gauge("octave_bot.guilds", Launcher.shardManager.guildCache.size())
-        Launcher.datadog.gauge("octave_bot.users", Launcher.shardManager.userCache.size())
-        Launcher.datadog.gauge("octave_bot.players", Launcher.players.size().toLong())
-        Launcher.datadog.incrementCounter("octave_bot.guildLeave")
-        postStats(event.jda)
+        Metrics.counter("octave_bot.guildLeave", shardTag(event.jda)).increment()
+        Launcher.shardStats.guildLeft(event.jda)
     }
 
     private fun onStatusChange(event: StatusChangeEvent) {
@@ -112,29 +111,39 @@ class BotListener : EventListener {
             log.info("Shard #{} Status: {} -> {}", event.jda.shardInfo.shardId, event.oldStatus, event.newStatus)
         }
 
-        postStats(event.jda)
+        Launcher.shardStats.update(event.jda)
+
+        // Shards only become CONNECTED after their ReadyEvent has been handled, so the last shard to
+        // come up is only seen as connected here.
+        if (event.newStatus == JDA.Status.CONNECTED) {
+            val shardManager = Launcher.shardManager
+            if (shardManager.shardsQueued == 0 && shardManager.shards.all { it.status == JDA.Status.CONNECTED }) {
+                CacheWarmer.startAutomatically()
+            }
+        }
     }
 
     private fun onReady(event: ReadyEvent) {
-        Launcher.datadog.incrementCounter("octave_bot.shardReady")
+        Metrics.counter("octave_bot.shardReady", shardTag(event.jda)).increment()
         log.info("JDA ${event.jda.shardInfo.shardId} is ready.")
-        postStats(event.jda)
+        Launcher.shardStats.update(event.jda, resync = true)
+        Launcher.players.migrator.restore(event.jda)
     }
 
     private fun onResume(event: ResumedEvent) {
-        Launcher.datadog.incrementCounter("octave_bot.shardResume")
+        Metrics.counter("octave_bot.shardResume", shardTag(event.jda)).increment()
         log.info("JDA ${event.jda.shardInfo.shardId} has resumed.")
-        postStats(event.jda)
+        Launcher.shardStats.update(event.jda, resync = true)
     }
 
     private fun onReconnect(event: ReconnectedEvent) {
-        Launcher.datadog.incrementCounter("octave_bot.shardReconnect")
+        Metrics.counter("octave_bot.shardReconnect", shardTag(event.jda)).increment()
         log.info("JDA ${event.jda.shardInfo.shardId} has reconnected.")
-        postStats(event.jda)
+        Launcher.shardStats.update(event.jda, resync = true)
     }
 
     private fun onDisconnect(event: DisconnectEvent) {
-        Launcher.datadog.incrementCounter("octave_bot.shardDisconnect")
+        Metrics.counter("octave_bot.shardDisconnect", shardTag(event.jda)).increment()
 
         if (event.isClosedByServer) {
             log.info("JDA {} disconnected (closed by server). Code: {} {}",
@@ -147,24 +156,10 @@ class BotListener : EventListener {
     }
 
     private fun onException(event: ExceptionEvent) {
-        Launcher.datadog.incrementCounter("octave_bot.exception")
+        Metrics.counter("octave_bot.exception", shardTag(event.jda)).increment()
         if (!event.isLogged)
             log.error("Exception in JDA {}", event.jda.shardInfo.shardId, event.cause)
     }
 
-    private fun postStats(jda: JDA) {
-        if (jda.status == JDA.Status.INITIALIZED) {
-            return
-        }
-
-        Launcher.database.jedisPool.resource.use {
-            it.hset("stats", jda.shardInfo.shardId.toString(), JSONObject()
-                .put("guild_count", jda.guildCache.size())
-                .put("cached_users", jda.userCache.size())
-                .put("status", jda.status)
-                .put("ping", jda.gatewayPing)
-                .toString()
-            )
-        }
-    }
+    private fun shardTag(jda: JDA) = "shard:${jda.shardInfo.shardId}"
 }
@@ -28,6 +28,8 @@ import gg.octave.bot.Launcher
 import gg.octave.bot.db.guilds.GuildData
 import gg.octave.bot.entities.framework.DJ
 import gg.octave.bot.entities.framework.DonorOnly
+import gg.octave.bot.metrics.CommandProfiler
+import gg.octave.bot.metrics.Metrics
 import gg.octave.bot.utils.extensions.*
 import gg.octave.bot.utils.getDisplayValue
 import gg.octave.bot.utils.hasAnyRoleId
@@ -111,6 +113,15 @@ class FlightEventAdapter : DefaultCommandEventAdapter() {
             return false
         }
 
+        val invocation = CommandProfiler.beginPreInvoke(ctx, command)
+        val proceed = checkPreInvoke(ctx, command)
+        CommandProfiler.endPreInvoke(invocation, proceed)
+
+        return proceed
+    }
+
+    @ExperimentalStdlibApi
+    private fun checkPreInvoke(ctx: Context, command: CommandFunction): Boolean {
         if (!ctx.selfMember!!.hasPermission(ctx.textChannel!!, Permission.MESSAGE_EMBED_LINKS)) {
             ctx.send("This bot requires the permission Embed Links to work (else the bot can't show embeds).")
             return false
@@ -178,7 +189,12 @@ class FlightEventAdapter : DefaultCommandEventAdapter() {
     }
 
     override fun onCommandPostInvoke(ctx: Context, command: CommandFunction, failed: Boolean) {
-        Launcher.datadog.incrementCounter("bot.commands_ran")
+        Metrics.counter("bot.commands_ran").increment()
+        CommandProfiler.postInvoke(ctx, failed)
+
+        if (failed) {
+            Metrics.counter("octave_bot.command.failed", "command:${command.name}").increment()
+        }
     }
 
     override fun onBotMissingPermissions(ctx: Context, command: CommandFunction, permissions: List<Permission>) {
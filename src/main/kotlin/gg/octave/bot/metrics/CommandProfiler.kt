@@ -0,0 +1,283 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.metrics
+
+import gg.octave.bot.Launcher
+import gg.octave.bot.metrics.jfr.CommandEvent
+import gg.octave.bot.metrics.jfr.JfrRecorder
+import gg.octave.bot.utils.Scheduler
+import me.devoxin.flight.api.CommandFunction
+import me.devoxin.flight.api.Context
+import net.dv8tion.jda.api.entities.Message
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Splits command invocations into phases and keeps a log of the slowest ones.
+ *
+ * Phases are measured from when the prefix provider is first asked about the message:
+ * - prefix: resolving the guild prefix.
+ * - pre_invoke: the checks in FlightEventAdapter, which load guild data and premium status.
+ * - body: from pre-invoke passing until the command returns.
+ * - first_send: from the start of the invocation until the first message the bot sends in that
+ *   channel comes back through the gateway.
+ *
+ * The invocation being profiled is tracked per thread once a command has matched, so database and Redis
+ * calls made on the event thread or on the command executor ([ProfilingExecutor]) are attributed to it.
+ */
+object CommandProfiler {
+    private val executor = Executors.newSingleThreadScheduledExecutor()
+
+    private val current = ThreadLocal<Invocation?>()
+    private val lastPrefix = ThreadLocal.withInitial(::PrefixTiming) // Reused, as it's written for every message.
+    private val pending = ConcurrentHashMap<Long, Invocation>() // Message ID -> invocation
+    private val awaitingReply = ConcurrentHashMap<Long, Invocation>() // Channel ID -> invocation
+
+    private val slowLog = ArrayDeque<Invocation>(SLOW_LOG_SIZE)
+    private val slowThresholdNanos = Launcher.configuration.slowCommandThreshold.toNanos()
+
+    init {
+        Scheduler.fixedRateScheduleWithSuppression(executor, 5, 5, TimeUnit.SECONDS) { sweep() }
+    }
+
+    /**
+     * @return The most recent invocations that went over the slow threshold, newest first.
+     */
+    val slowest: List<Invocation>
+        get() = synchronized(slowLog) { slowLog.reversed() }
+
+    inline fun <T> timePrefix(message: Message, block: () -> T): T {
+        val startedAt = System.nanoTime()
+
+        try {
+            return block()
+        } finally {
+            prefixResolved(message.idLong, startedAt)
+        }
+    }
+
+    /**
+     * Remembers how long resolving the prefix took. The prefix provider sees every message, so nothing is
+     * bound to the thread until [beginPreInvoke] knows it's a command.
+     */
+    fun prefixResolved(messageId: Long, startedAt: Long) {
+        val timing = lastPrefix.get()
+        timing.messageId = messageId
+        timing.startedAt = startedAt
+        timing.nanos = System.nanoTime() - startedAt
+    }
+
+    fun beginPreInvoke(ctx: Context, command: CommandFunction): Invocation {
+        val message = ctx.message
+        val prefix = lastPrefix.get().takeIf { it.messageId == message.idLong }
+        val invocation = Invocation(message.idLong, message.guild.idLong, message.channel.idLong, prefix?.startedAt ?: System.nanoTime())
+
+        invocation.prefixNanos = prefix?.nanos ?: 0
+        invocation.jfrEvent = JfrRecorder.begin(::CommandEvent)
+        invocation.command = command.name
+        invocation.preInvokeStartedAt = System.nanoTime()
+        current.set(invocation)
+        return invocation
+    }
+
+    fun endPreInvoke(invocation: Invocation, proceed: Boolean) {
+        invocation.preInvokeNanos = System.nanoTime() - invocation.preInvokeStartedAt
+
+        if (!proceed) {
+            current.remove()
+            return
+        }
+
+        // Left set on this thread, so ProfilingExecutor can hand it to the thread that runs the command.
+        pending[invocation.messageId] = invocation
+        awaitingReply[invocation.channelId] = invocation
+    }
+
+    fun postInvoke(ctx: Context, failed: Boolean) {
+        val invocation = pending[ctx.message.idLong]
+            ?: return
+
+        invocation.bodyNanos = System.nanoTime() - invocation.preInvokeStartedAt - invocation.preInvokeNanos
+        invocation.failed = failed
+        invocation.finishedAt = System.nanoTime()
+        invocation.jfrEvent?.end()
+
+        if (invocation.firstSendNanos >= 0) {
+            complete(invocation)
+        }
+    }
+
+    /**
+     * Called for every message the bot sends, as it arrives through the gateway.
+     */
+    fun messageSent(channelId: Long) {
+        val invocation = awaitingReply.remove(channelId)
+            ?: return
+
+        invocation.firstSendNanos = System.nanoTime() - invocation.startedAt
+
+        if (invocation.finishedAt != 0L) {
+            complete(invocation)
+        }
+    }
+
+    fun dbCall() {
+        current.get()?.dbCalls?.incrementAndGet()
+    }
+
+    fun redisCall() {
+        current.get()?.redisCalls?.incrementAndGet()
+    }
+
+    internal fun capture(): Invocation? {
+        val invocation = current.get()
+            ?: return null
+
+        // Once handed to the executor, the submitting (event) thread is done with it.
+        if (invocation.handedOff.compareAndSet(false, true)) {
+            current.remove()
+        }
+
+        return invocation
+    }
+
+    internal fun runWith(invocation: Invocation?, block: () -> Unit) {
+        val previous = current.get()
+        current.set(invocation)
+
+        try {
+            block()
+        } finally {
+            current.set(previous)
+        }
+    }
+
+    private fun complete(invocation: Invocation) {
+        if (!invocation.completed.compareAndSet(false, true)) {
+            return
+        }
+
+        pending.remove(invocation.messageId)
+        awaitingReply.remove(invocation.channelId, invocation)
+
+        val command = "command:${invocation.command}"
+        Metrics.histogram("octave_bot.command.latency", command).record(invocation.totalNanos.toMillis())
+
+        for ((phase, nanos) in invocation.phases) {
+            Metrics.histogram("octave_bot.command.phase", command, "phase:$phase").record(nanos.toMillis())
+        }
+
+        invocation.jfrEvent?.let {
+            it.command = invocation.command
+            it.guildId = invocation.guildId
+            it.prefix = invocation.prefixNanos
+            it.preInvoke = invocation.preInvokeNanos
+            it.body = invocation.bodyNanos
+            it.dbCalls = invocation.dbCalls.get()
+            it.redisCalls = invocation.redisCalls.get()
+            it.failed = invocation.failed
+            it.commit()
+        }
+
+        if (invocation.totalNanos >= slowThresholdNanos) {
+            synchronized(slowLog) {
+                if (slowLog.size == SLOW_LOG_SIZE) {
+                    slowLog.removeFirst()
+                }
+
+                slowLog.addLast(invocation)
+            }
+        }
+    }
+
+    private fun sweep() {
+        val now = System.nanoTime()
+
+        for (invocation in pending.values) {
+            val finishedAt = invocation.finishedAt
+
+            when {
+                // Commands that didn't reply (or replied somewhere else) are completed without a send phase.
+                finishedAt != 0L && now - finishedAt > REPLY_TIMEOUT -> complete(invocation)
+                // Post-invoke never came, most likely a suspended command that never resumed.
+                finishedAt == 0L && now - invocation.startedAt > ABANDON_TIMEOUT -> {
+                    pending.remove(invocation.messageId)
+                    awaitingReply.remove(invocation.channelId, invocation)
+                }
+            }
+        }
+    }
+
+    private fun Long.toMillis() = TimeUnit.NANOSECONDS.toMillis(this)
+
+    private class PrefixTiming {
+        var messageId = 0L
+        var startedAt = 0L
+        var nanos = 0L
+    }
+
+    class Invocation(val messageId: Long, val guildId: Long, val channelId: Long, val startedAt: Long) {
+        val timestamp = System.currentTimeMillis()
+        var command = "unknown"
+
+        var prefixNanos = 0L
+        var preInvokeStartedAt = 0L
+        var preInvokeNanos = 0L
+        @Volatile
+        var bodyNanos = 0L
+        @Volatile
+        var firstSendNanos = -1L
+        @Volatile
+        var finishedAt = 0L
+        @Volatile
+        var failed = false
+
+        val dbCalls = AtomicInteger()
+        val redisCalls = AtomicInteger()
+        internal var jfrEvent: CommandEvent? = null
+
+        internal val handedOff = AtomicBoolean()
+        internal val completed = AtomicBoolean()
+
+        val totalNanos: Long
+            get() = prefixNanos + preInvokeNanos + bodyNanos
+
+        val phases: List<Pair<String, Long>>
+            get() = listOfNotNull(
+                "prefix" to prefixNanos,
+                "pre_invoke" to preInvokeNanos,
+                "body" to bodyNanos,
+                firstSendNanos.takeIf { it >= 0 }?.let { "first_send" to it }
+            )
+    }
+
+    private const val SLOW_LOG_SIZE = 50
+    private val REPLY_TIMEOUT = TimeUnit.SECONDS.toNanos(10)
+    private val ABANDON_TIMEOUT = TimeUnit.MINUTES.toNanos(10)
+}
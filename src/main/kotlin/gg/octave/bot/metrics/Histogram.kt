@@ -0,0 +1,143 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.metrics
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Lock-free log-linear histogram, in the spirit of HdrHistogram.
+ *
+ * Values below 16 get a bucket each; above that, every power of two is split into 8 linear sub-buckets,
+ * which bounds the error of any reported percentile to 12.5% while using a fixed ~4KB per histogram.
+ * Recording is a couple of atomic increments, so it's safe to call from hot paths on any thread.
+ *
+ * Two sets of buckets are kept: one for the whole process lifetime, and one for the current flush
+ * interval, which is reset every time it's flushed.
+ */
+class Histogram {
+    private val total = Buckets()
+    private val interval = Buckets()
+
+    fun record(value: Long) {
+        val index = indexOf(value.coerceAtLeast(0))
+        total.record(index, value)
+        interval.record(index, value)
+    }
+
+    fun snapshot() = total.snapshot()
+
+    /**
+     * @return A snapshot of everything recorded since the last call, resetting the interval.
+     */
+    fun snapshotInterval() = interval.snapshot(reset = true)
+
+    private class Buckets {
+        val counts = AtomicLongArray(BUCKET_COUNT)
+        val sum = AtomicLong()
+        val max = AtomicLong()
+
+        fun record(index: Int, value: Long) {
+            counts.incrementAndGet(index)
+            sum.addAndGet(value)
+
+            var current = max.get()
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get()
+            }
+        }
+
+        fun snapshot(reset: Boolean = false): Snapshot {
+            val copy = LongArray(BUCKET_COUNT) { if (reset) counts.getAndSet(it, 0) else counts.get(it) }
+            val sum = if (reset) sum.getAndSet(0) else sum.get()
+            val max = if (reset) max.getAndSet(0) else max.get()
+            return Snapshot(copy, sum, max)
+        }
+    }
+
+    class Snapshot(private val counts: LongArray, val sum: Long, val max: Long) {
+        val count = counts.sum()
+        val mean: Double get() = if (count == 0L) 0.0 else sum.toDouble() / count
+
+        operator fun plus(other: Snapshot): Snapshot {
+            return Snapshot(LongArray(counts.size) { counts[it] + other.counts[it] }, sum + other.sum, maxOf(max, other.max))
+        }
+
+        /**
+         * @param percentile Between 0 and 100.
+         */
+        fun percentile(percentile: Double): Long {
+            if (count == 0L) {
+                return 0
+            }
+
+            val target = Math.ceil(count * (percentile / 100)).toLong().coerceAtLeast(1)
+            var seen = 0L
+
+            for ((index, bucketCount) in counts.withIndex()) {
+                seen += bucketCount
+
+                if (seen >= target) {
+                    return valueOf(index).coerceAtMost(max)
+                }
+            }
+
+            return max
+        }
+    }
+
+    companion object {
+        private const val LINEAR_LIMIT = 16
+        private const val SUB_BUCKET_BITS = 3
+        private const val SUB_BUCKETS = 1 shl SUB_BUCKET_BITS
+        private const val FIRST_EXPONENT = 4 // log2(LINEAR_LIMIT)
+        private const val BUCKET_COUNT = LINEAR_LIMIT + (63 - FIRST_EXPONENT) * SUB_BUCKETS
+
+        private fun indexOf(value: Long): Int {
+            if (value < LINEAR_LIMIT) {
+                return value.toInt()
+            }
+
+            val exponent = 63 - java.lang.Long.numberOfLeadingZeros(value)
+            val subBucket = (value ushr (exponent - SUB_BUCKET_BITS)).toInt() and (SUB_BUCKETS - 1)
+            return LINEAR_LIMIT + (exponent - FIRST_EXPONENT) * SUB_BUCKETS + subBucket
+        }
+
+        /**
+         * @return The midpoint of the bucket at the given index.
+         */
+        private fun valueOf(index: Int): Long {
+            if (index < LINEAR_LIMIT) {
+                return index.toLong()
+            }
+
+            val exponent = (index - LINEAR_LIMIT) / SUB_BUCKETS + FIRST_EXPONENT
+            val subBucket = (index - LINEAR_LIMIT) % SUB_BUCKETS
+            val width = 1L shl (exponent - SUB_BUCKET_BITS)
+            val lower = (1L shl exponent) + subBucket * width
+            return lower + width / 2
+        }
+    }
+}
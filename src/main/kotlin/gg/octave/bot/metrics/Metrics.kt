@@ -0,0 +1,154 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.metrics
+
+import gg.octave.bot.Launcher
+import gg.octave.bot.utils.Scheduler
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Central registry for the bot's metrics.
+ *
+ * Counters, histograms and gauges are registered lazily by name and tags, and are flushed to statsd
+ * every [FLUSH_INTERVAL_SECONDS]. Everything recorded here is also kept in-process so admin commands
+ * (and anything else) can read a snapshot without going through statsd.
+ */
+object Metrics {
+    private val executor = Executors.newSingleThreadScheduledExecutor()
+
+    private val counters = ConcurrentHashMap<MetricKey, Counter>()
+    private val histograms = ConcurrentHashMap<MetricKey, Histogram>()
+    private val gauges = ConcurrentHashMap<MetricKey, () -> Number>()
+
+    /** Tags applied to everything reported by this process. */
+    private val globalTags = arrayOf("node:${Launcher.configuration.nodeNumber}")
+
+    init {
+        Scheduler.fixedRateScheduleWithSuppression(executor, FLUSH_INTERVAL_SECONDS, FLUSH_INTERVAL_SECONDS, TimeUnit.SECONDS) { flush() }
+    }
+
+    fun counter(name: String, vararg tags: String): Counter = counters.computeIfAbsent(MetricKey(name, tags.toList())) { Counter() }
+    fun histogram(name: String, vararg tags: String): Histogram = histograms.computeIfAbsent(MetricKey(name, tags.toList())) { Histogram() }
+
+    /**
+     * Registers a gauge, replacing any gauge with the same name and tags. The supplier is invoked on every flush.
+     */
+    fun gauge(name: String, vararg tags: String, supplier: () -> Number) {
+        gauges[MetricKey(name, tags.toList())] = supplier
+    }
+
+    /**
+     * Times the block, recording the elapsed time in milliseconds.
+     */
+    inline fun <T> time(name: String, vararg tags: String, block: () -> T): T {
+        val start = System.nanoTime()
+
+        try {
+            return block()
+        } finally {
+            histogram(name, *tags).record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start))
+        }
+    }
+
+    /**
+     * @return The cache hit ratio of the track cache, between 0 and 1.
+     */
+    val cacheHitRatio: Double
+        get() {
+            val lookups = counter("octave_bot.cache.lookups").value
+            return if (lookups == 0L) 0.0 else counter("octave_bot.cache.hits").value.toDouble() / lookups
+        }
+
+    /**
+     * @return Snapshots of every histogram called [name], whatever its tags. Cheaper than [snapshot], which also evaluates every gauge.
+     */
+    fun histogramsNamed(name: String): List<Histogram.Snapshot> {
+        return histograms.filterKeys { it.name == name }.values.map { it.snapshot() }
+    }
+
+    fun snapshot(): MetricsSnapshot {
+        return MetricsSnapshot(
+            counters.mapValues { it.value.value },
+            histograms.mapValues { it.value.snapshot() },
+            gauges.mapValues { it.value().toDouble() }
+        )
+    }
+
+    private fun flush() {
+        val statsd = Launcher.datadog
+
+        for ((key, counter) in counters) {
+            val delta = counter.takeDelta()
+
+            if (delta > 0) {
+                statsd.count(key.name, delta, *key.tags(globalTags))
+            }
+        }
+
+        for ((key, histogram) in histograms) {
+            val snapshot = histogram.snapshotInterval()
+
+            if (snapshot.count == 0L) {
+                continue
+            }
+
+            val tags = key.tags(globalTags)
+            statsd.count("${key.name}.count", snapshot.count, *tags)
+            statsd.gauge("${key.name}.avg", snapshot.mean, *tags)
+            statsd.gauge("${key.name}.p50", snapshot.percentile(50.0), *tags)
+            statsd.gauge("${key.name}.p95", snapshot.percentile(95.0), *tags)
+            statsd.gauge("${key.name}.p99", snapshot.percentile(99.0), *tags)
+            statsd.gauge("${key.name}.max", snapshot.max, *tags)
+        }
+
+        for ((key, supplier) in gauges) {
+            statsd.gauge(key.name, supplier().toDouble(), *key.tags(globalTags))
+        }
+
+        statsd.gauge("octave_bot.cache.hit_ratio", cacheHitRatio, *globalTags)
+    }
+
+    class Counter {
+        private val adder = LongAdder()
+        private var flushed = 0L // Only touched by the flush thread.
+
+        val value: Long get() = adder.sum()
+
+        fun increment() = adder.increment()
+        fun add(amount: Long) = adder.add(amount)
+
+        internal fun takeDelta(): Long {
+            val current = adder.sum()
+            val delta = current - flushed
+            flushed = current
+            return delta
+        }
+    }
+
+    private const val FLUSH_INTERVAL_SECONDS = 10L
+}
@@ -0,0 +1,240 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.metrics
+
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpServer
+import gg.octave.bot.Launcher
+import org.redisson.api.RFuture
+import org.slf4j.LoggerFactory
+import java.lang.management.ManagementFactory
+import java.net.InetSocketAddress
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * Serves everything in [Metrics], plus JVM, shard and player state, in the Prometheus text format.
+ *
+ * Scrapes are served from a single thread and only read in-process state, apart from the total queue
+ * length which needs Redis and is therefore cached for [QUEUE_REFRESH_MS].
+ */
+class PrometheusExporter(private val host: String, private val port: Int) {
+    private val executor = Executors.newSingleThreadExecutor()
+    private var server: HttpServer? = null
+
+    private var queuedTracks = 0L
+    private var queuedTracksAt = 0L
+
+    fun start() {
+        server = HttpServer.create(InetSocketAddress(host, port), 0).apply {
+            createContext("/metrics") { handle(it) }
+            executor = this@PrometheusExporter.executor
+            start()
+        }
+
+        log.info("Serving Prometheus metrics on {}:{}", host, port)
+    }
+
+    fun stop() {
+        server?.stop(0)
+        executor.shutdown()
+    }
+
+    private fun handle(exchange: HttpExchange) {
+        try {
+            if (exchange.requestMethod != "GET") {
+                exchange.sendResponseHeaders(405, -1)
+                return
+            }
+
+            val body = try {
+                render().toByteArray()
+            } catch (e: Exception) {
+                log.error("Failed to render metrics", e)
+                exchange.sendResponseHeaders(500, -1)
+                return
+            }
+
+            exchange.responseHeaders.add("Content-Type", "text/plain; version=0.0.4; charset=utf-8")
+            exchange.sendResponseHeaders(200, body.size.toLong())
+            exchange.responseBody.write(body)
+        } finally {
+            exchange.close()
+        }
+    }
+
+    fun render(): String {
+        val out = StringBuilder(16384)
+        val snapshot = Metrics.snapshot()
+
+        for ((name, entries) in snapshot.counters.entries.groupBy { it.key.name }) {
+            val metric = "${sanitize(name).removeSuffix("_total")}_total"
+            out.type(metric, "counter")
+            entries.forEach { out.sample(metric, labels(it.key.tags), it.value) }
+        }
+
+        for ((name, entries) in snapshot.histograms.entries.groupBy { it.key.name }) {
+            val metric = sanitize(name)
+            out.type(metric, "summary")
+
+            for ((key, histogram) in entries) {
+                for (quantile in QUANTILES) {
+                    val labels = labels(key.tags, "quantile" to quantile.toString())
+                    out.sample(metric, labels, histogram.percentile(quantile * 100))
+                }
+
+                out.sample("${metric}_sum", labels(key.tags), histogram.sum)
+                out.sample("${metric}_count", labels(key.tags), histogram.count)
+            }
+        }
+
+        for ((name, entries) in snapshot.gauges.entries.groupBy { it.key.name }) {
+            val metric = sanitize(name)
+            out.type(metric, "gauge")
+            entries.forEach { out.sample(metric, labels(it.key.tags), it.value) }
+        }
+
+        out.gauge("octave_bot_cache_hit_ratio", Metrics.cacheHitRatio)
+        renderJvm(out)
+        renderShards(out)
+        renderPlayers(out)
+
+        return out.toString()
+    }
+
+    private fun renderJvm(out: StringBuilder) {
+        val memory = ManagementFactory.getMemoryMXBean()
+        val heap = memory.heapMemoryUsage
+        val nonHeap = memory.nonHeapMemoryUsage
+
+        out.type("jvm_memory_bytes_used", "gauge")
+        out.sample("jvm_memory_bytes_used", labels(emptyList(), "area" to "heap"), heap.used)
+        out.sample("jvm_memory_bytes_used", labels(emptyList(), "area" to "nonheap"), nonHeap.used)
+        out.type("jvm_memory_bytes_committed", "gauge")
+        out.sample("jvm_memory_bytes_committed", labels(emptyList(), "area" to "heap"), heap.committed)
+        out.sample("jvm_memory_bytes_committed", labels(emptyList(), "area" to "nonheap"), nonHeap.committed)
+        out.gauge("jvm_memory_bytes_max", heap.max)
+
+        val collectors = ManagementFactory.getGarbageCollectorMXBeans()
+        out.type("jvm_gc_collections_total", "counter")
+        collectors.forEach { out.sample("jvm_gc_collections_total", labels(emptyList(), "gc" to it.name), it.collectionCount) }
+        out.type("jvm_gc_collection_seconds_total", "counter")
+        collectors.forEach { out.sample("jvm_gc_collection_seconds_total", labels(emptyList(), "gc" to it.name), it.collectionTime / 1000.0) }
+
+        val threads = ManagementFactory.getThreadMXBean()
+        out.gauge("jvm_threads_current", threads.threadCount)
+        out.gauge("jvm_threads_daemon", threads.daemonThreadCount)
+        out.gauge("jvm_threads_peak", threads.peakThreadCount)
+        out.gauge("process_uptime_seconds", ManagementFactory.getRuntimeMXBean().uptime / 1000.0)
+    }
+
+    private fun renderShards(out: StringBuilder) {
+        val shards = Launcher.shardManager.shards
+
+        out.type("octave_bot_shard_gateway_ping_ms", "gauge")
+        shards.forEach {
+            out.sample("octave_bot_shard_gateway_ping_ms", labels(emptyList(), "shard" to it.shardInfo.shardId.toString()), it.gatewayPing)
+        }
+
+        out.type("octave_bot_shard_status", "gauge")
+        shards.forEach {
+            val labels = labels(emptyList(), "shard" to it.shardInfo.shardId.toString(), "status" to it.status.name)
+            out.sample("octave_bot_shard_status", labels, 1)
+        }
+
+        out.gauge("octave_bot_shards_running", Launcher.shardManager.shardsRunning)
+        out.gauge("octave_bot_shards_total", Launcher.shardManager.shardsTotal)
+    }
+
+    private fun renderPlayers(out: StringBuilder) {
+        val managers = Launcher.players.registry.values
+        val playing = managers.count { it.player.playingTrack != null && !it.player.isPaused }
+        val paused = managers.count { it.player.playingTrack != null && it.player.isPaused }
+
+        out.type("octave_bot_players_state", "gauge")
+        out.sample("octave_bot_players_state", labels(emptyList(), "state" to "playing"), playing)
+        out.sample("octave_bot_players_state", labels(emptyList(), "state" to "paused"), paused)
+        out.sample("octave_bot_players_state", labels(emptyList(), "state" to "idle"), managers.size - playing - paused)
+
+        out.gauge("octave_bot_queued_tracks", queuedTracks())
+        out.gauge("octave_bot_audio_frame_loss_percent", Launcher.players.frameStats.nodeLossPercent)
+    }
+
+    private fun queuedTracks(): Long {
+        val now = System.currentTimeMillis()
+
+        if (now - queuedTracksAt < QUEUE_REFRESH_MS) {
+            return queuedTracks
+        }
+
+        // One round trip for every queue, rather than one per player.
+        val batch = Launcher.db.redisson.createBatch()
+        val sizes = Launcher.players.registry.values.map { batch.getQueue<String>(it.queue.name).sizeAsync() }
+        batch.execute()
+
+        queuedTracks = sizes.map(RFuture<Int>::getNow).sumBy { it ?: 0 }.toLong()
+        queuedTracksAt = now
+        return queuedTracks
+    }
+
+    private fun StringBuilder.type(metric: String, type: String) {
+        append("# TYPE ").append(metric).append(' ').append(type).append('\n')
+    }
+
+    private fun StringBuilder.sample(metric: String, labels: String, value: Number) {
+        append(metric).append(labels).append(' ').append(value).append('\n')
+    }
+
+    private fun StringBuilder.gauge(metric: String, value: Number) {
+        type(metric, "gauge")
+        sample(metric, "", value)
+    }
+
+    /**
+     * Turns `key:value` tags into Prometheus labels. The node tag is left to the scrape config.
+     */
+    private fun labels(tags: List<String>, vararg extra: Pair<String, String>): String {
+        if (tags.isEmpty() && extra.isEmpty()) {
+            return ""
+        }
+
+        val pairs = tags.map {
+            val separator = it.indexOf(':')
+            if (separator == -1) "tag" to it else it.substring(0, separator) to it.substring(separator + 1)
+        } + extra
+
+        return pairs.joinToString(",", "{", "}") { (key, value) -> "${sanitize(key)}=\"${escape(value)}\"" }
+    }
+
+    private fun sanitize(name: String) = name.replace(INVALID_NAME_CHARS, "_")
+    private fun escape(value: String) = value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")
+
+    companion object {
+        private val log = LoggerFactory.getLogger(PrometheusExporter::class.java)
+        private val INVALID_NAME_CHARS = Regex("[^a-zA-Z0-9_]")
+        private val QUANTILES = doubleArrayOf(0.5, 0.95, 0.99)
+        private val QUEUE_REFRESH_MS = TimeUnit.SECONDS.toMillis(30)
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.metrics.jfr
+
+import jdk.jfr.*
+
+@Name("gg.octave.TrackLoad")
+@Label("Track Load")
+@Category("Octave", "Music")
+@Description("Loading a track or playlist requested by a command")
+@StackTrace(false)
+class TrackLoadEvent : Event() {
+    @Label("Identifier")
+    @JvmField
+    var identifier: String? = null
+
+    @Label("Source")
+    @JvmField
+    var source: String? = null
+
+    @Label("Result")
+    @JvmField
+    var result: String? = null
+}
+
+@Name("gg.octave.Command")
+@Label("Command")
+@Category("Octave", "Commands")
+@Description("A command invocation, from prefix resolution until the command returned")
+@StackTrace(false)
+class CommandEvent : Event() {
+    @Label("Command")
+    @JvmField
+    var command: String? = null
+
+    @Label("Guild ID")
+    @JvmField
+    var guildId = 0L
+
+    @Label("Prefix")
+    @Timespan(Timespan.NANOSECONDS)
+    @JvmField
+    var prefix = 0L
+
+    @Label("Pre-Invoke")
+    @Timespan(Timespan.NANOSECONDS)
+    @JvmField
+    var preInvoke = 0L
+
+    @Label("Body")
+    @Timespan(Timespan.NANOSECONDS)
+    @JvmField
+    var body = 0L
+
+    @Label("Database Calls")
+    @JvmField
+    var dbCalls = 0
+
+    @Label("Redis Calls")
+    @JvmField
+    var redisCalls = 0
+
+    @Label("Failed")
+    @JvmField
+    var failed = false
+}
+
+@Name("gg.octave.DatabaseCall")
+@Label("Database Call")
+@Category("Octave", "Database")
+@Description("A single RethinkDB query or Redis connection checkout")
+@StackTrace(false)
+class DatabaseCallEvent : Event() {
+    @Label("Database")
+    @JvmField
+    var database: String? = null
+}
+
+@Name("gg.octave.AudioUnderrun")
+@Label("Audio Underrun")
+@Category("Octave", "Music")
+@Description("A player that missed frames during the last sampling window")
+@StackTrace(false)
+class AudioUnderrunEvent : Event() {
+    @Label("Guild ID")
+    @JvmField
+    var guildId = 0L
+
+    @Label("Frames Missed")
+    @JvmField
+    var framesMissed = 0L
+
+    @Label("Frame Loss")
+    @Percentage
+    @JvmField
+    var frameLoss = 0.0
+
+    @Label("Longest Streak")
+    @JvmField
+    var longestStreak = 0
+
+    @Label("Buffer Fill")
+    @JvmField
+    var bufferFill = 0
+}
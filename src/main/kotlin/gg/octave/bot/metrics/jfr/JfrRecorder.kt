@@ -0,0 +1,126 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.metrics.jfr
+
+import gg.octave.bot.Launcher
+import jdk.jfr.Event
+import jdk.jfr.FlightRecorder
+import jdk.jfr.Recording
+import org.slf4j.LoggerFactory
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.time.Duration
+import java.time.LocalDateTime
+import java.time.format.DateTimeFormatter
+import jdk.jfr.Configuration as JfrConfiguration
+
+/**
+ * Runs an optional continuous flight recording with a rolling on-disk buffer, and records the
+ * bot's own events into it.
+ *
+ * When the recording is disabled in bot.conf, [record] and [begin] never create an event,
+ * so instrumented code only pays for a field read.
+ */
+object JfrRecorder {
+    private val log = LoggerFactory.getLogger(JfrRecorder::class.java)
+    private val config = Launcher.configuration
+
+    @JvmField
+    val enabled = config.jfrEnabled
+
+    private var recording: Recording? = null
+
+    val isRecording: Boolean
+        get() = recording != null
+
+    fun start() {
+        if (!enabled || recording != null) {
+            return
+        }
+
+        recording = Recording(JfrConfiguration.getConfiguration(config.jfrSettings)).apply {
+            name = "octave-continuous"
+            isToDisk = true
+            maxAge = config.jfrMaxAge
+            maxSize = config.jfrMaxSizeMb * 1024 * 1024
+            start()
+        }
+
+        log.info("Started continuous flight recording (settings: {}, max age: {})", config.jfrSettings, config.jfrMaxAgeText)
+    }
+
+    /**
+     * Writes roughly the last [duration] of recorded data to the dump directory. Data is kept
+     * in chunks, so the dump may reach a little further back than requested.
+     *
+     * @return The path of the dump.
+     */
+    fun dump(duration: Duration): Path {
+        check(recording != null) { "Flight recording isn't running" }
+
+        val directory = Paths.get(config.jfrDumpDirectory)
+        Files.createDirectories(directory)
+        val path = directory.resolve("octave-node${config.nodeNumber}-${LocalDateTime.now().format(FILE_DATE_FORMAT)}.jfr")
+
+        FlightRecorder.getFlightRecorder().takeSnapshot().use {
+            it.maxAge = duration
+            it.dump(path)
+        }
+
+        return path
+    }
+
+    /**
+     * Times the block as the event created by [factory], if recording is enabled.
+     */
+    inline fun <E : Event, T> record(factory: () -> E, block: () -> T): T {
+        if (!enabled) {
+            return block()
+        }
+
+        val event = factory()
+        event.begin()
+
+        try {
+            return block()
+        } finally {
+            event.commit()
+        }
+    }
+
+    /**
+     * Begins the event created by [factory] for committing later, or returns null if recording is disabled.
+     */
+    inline fun <E : Event> begin(factory: () -> E): E? {
+        if (!enabled) {
+            return null
+        }
+
+        return factory().also(Event::begin)
+    }
+
+    private val FILE_DATE_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")
+}
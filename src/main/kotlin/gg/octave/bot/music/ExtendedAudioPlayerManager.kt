@@ -24,9 +24,11 @@
 
 package gg.octave.bot.music
 
+import com.sedmelluq.discord.lavaplayer.player.AudioLoadResultHandler
 import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager
 import com.sedmelluq.discord.lavaplayer.player.DefaultAudioPlayerManager
 import com.sedmelluq.discord.lavaplayer.source.AudioSourceManager
+import com.sedmelluq.discord.lavaplayer.source.ProbingAudioSourceManager
 import com.sedmelluq.discord.lavaplayer.source.bandcamp.BandcampAudioSourceManager
 import com.sedmelluq.discord.lavaplayer.source.beam.BeamAudioSourceManager
 import com.sedmelluq.discord.lavaplayer.source.getyarn.GetyarnAudioSourceManager
@@ -37,16 +39,23 @@ import com.sedmelluq.discord.lavaplayer.source.youtube.YoutubeAudioSourceManager
 import com.sedmelluq.discord.lavaplayer.tools.io.MessageInput
 import com.sedmelluq.discord.lavaplayer.tools.io.MessageOutput
 import com.sedmelluq.discord.lavaplayer.track.AudioPlaylist
+import com.sedmelluq.discord.lavaplayer.track.AudioReference
 import com.sedmelluq.discord.lavaplayer.track.AudioTrack
 import com.sedmelluq.discord.lavaplayer.track.BasicAudioPlaylist
 import com.sedmelluq.discord.lavaplayer.track.playback.NonAllocatingAudioFrameBuffer
-import com.sedmelluq.lava.extensions.youtuberotator.YoutubeIpRotatorSetup
-import com.sedmelluq.lava.extensions.youtuberotator.planner.RotatingNanoIpRoutePlanner
 import com.sedmelluq.lava.extensions.youtuberotator.tools.ip.Ipv6Block
 import gg.octave.bot.Launcher
+import gg.octave.bot.music.routeplanner.HealthScoredRoutePlanner
 import gg.octave.bot.music.sources.attachment.DiscordAttachmentAudioSourceManager
 import gg.octave.bot.music.sources.caching.CachingSourceManager
+import gg.octave.bot.music.sources.opus.OpusCacheSourceManager
+import gg.octave.bot.music.sources.opus.OpusCachedAudioTrack
+import gg.octave.bot.music.sources.routing.IdentifierRouter
 import gg.octave.bot.music.sources.spotify.SpotifyAudioSourceManager
+import gg.octave.bot.music.tracing.LoadTrace
+import gg.octave.bot.music.tracing.TracingResultHandler
+import gg.octave.bot.music.tracing.TracingSourceManager
+import gg.octave.bot.music.utils.LoadReference
 import gg.octave.bot.music.utils.TrackContext
 import io.sentry.Sentry
 import org.json.JSONArray
@@ -56,8 +65,13 @@ import java.io.ByteArrayInputStream
 import java.io.ByteArrayOutputStream
 import java.net.InetAddress
 import java.util.*
+import java.util.concurrent.Future
 
 class ExtendedAudioPlayerManager(private val dapm: AudioPlayerManager = DefaultAudioPlayerManager()) : AudioPlayerManager by dapm {
+    /** Routes YouTube requests through the configured IPv6 block, if there is one. */
+    val routePlanner: HealthScoredRoutePlanner?
+    private val sourcesByName = HashMap<String, AudioSourceManager>()
+
     init {
         dapm.configuration.apply {
             isFilterHotSwapEnabled = true
@@ -68,24 +82,20 @@ class ExtendedAudioPlayerManager(private val dapm: AudioPlayerManager = DefaultA
         val config = Launcher.configuration
         val credentials = Launcher.credentials
 
-        if (config.ipv6Block.isNotEmpty()) {
-            val block = config.ipv6Block
-            val blocks = listOf(Ipv6Block(block))
+        routePlanner = config.ipv6Block.takeIf { it.isNotEmpty() }?.let { block ->
             val planner = when {
-                config.ipv6Exclude.isEmpty() -> RotatingNanoIpRoutePlanner(blocks)
+                config.ipv6Exclude.isEmpty() -> HealthScoredRoutePlanner(Ipv6Block(block))
                 else -> try {
                     val blacklistedGW = InetAddress.getByName(config.ipv6Exclude)
-                    RotatingNanoIpRoutePlanner(blocks) { it != blacklistedGW }
+                    HealthScoredRoutePlanner(Ipv6Block(block)) { it != blacklistedGW }
                 } catch (ex: Exception) {
                     Sentry.capture(ex)
                     log.error("Error setting up IPv6 exclude GW, falling back to registering the whole block", ex)
-                    RotatingNanoIpRoutePlanner(blocks)
+                    HealthScoredRoutePlanner(Ipv6Block(block))
                 }
             }
 
-            YoutubeIpRotatorSetup(planner)
-                .forSource(youtubeAudioSourceManager)
-                .setup()
+            planner.also { it.install(youtubeAudioSourceManager) }
         }
 
         val spotifyAudioSourceManager = SpotifyAudioSourceManager(
@@ -94,7 +104,8 @@ class ExtendedAudioPlayerManager(private val dapm: AudioPlayerManager = DefaultA
             youtubeAudioSourceManager
         )
 
-        registerSourceManagers(
+        val sourceManagers = listOf<AudioSourceManager>(
+            OpusCacheSourceManager { sourcesByName[it] },
             CachingSourceManager(),
             DiscordAttachmentAudioSourceManager(),
             spotifyAudioSourceManager,
@@ -105,13 +116,41 @@ class ExtendedAudioPlayerManager(private val dapm: AudioPlayerManager = DefaultA
             VimeoAudioSourceManager(),
             TwitchStreamAudioSourceManager(),
             BeamAudioSourceManager()
-        )
+        ).map { if (it is ProbingAudioSourceManager) it else TracingSourceManager(it) }
+
+        sourceManagers.associateByTo(sourcesByName) { it.sourceName }
+
+        // The router goes first and dispatches identifiers it recognises straight to their manager, probing the
+        // rest in order for anything else. It isn't traced itself, the managers it asks are.
+        // The managers below are still registered so lavaplayer can decode their tracks. Probing managers stay
+        // unwrapped: lavaplayer only offers references carrying a container descriptor to ProbingAudioSourceManagers,
+        // so it skips the router for those and hands them to the probing managers here directly.
+        registerSourceManager(IdentifierRouter(sourceManagers))
+        sourceManagers.forEach(::registerSourceManager)
     }
 
-    private fun registerSourceManagers(vararg sourceManagers: AudioSourceManager) {
-        for (sm in sourceManagers) {
-            registerSourceManager(sm)
-        }
+    override fun loadItem(identifier: String, resultHandler: AudioLoadResultHandler): Future<Void> {
+        val trace = LoadTrace(identifier).also(LoadTrace::dispatched)
+        return dapm.loadItem(LoadReference(identifier, trace = trace), TracingResultHandler(trace, resultHandler))
+    }
+
+    override fun loadItemOrdered(orderingKey: Any, identifier: String, resultHandler: AudioLoadResultHandler): Future<Void> {
+        return loadItemOrdered(orderingKey, AudioReference(identifier, null), resultHandler)
+    }
+
+    override fun loadItemOrdered(orderingKey: Any, reference: AudioReference, resultHandler: AudioLoadResultHandler): Future<Void> {
+        return loadItemOrdered(orderingKey, reference, resultHandler, LoadTrace(reference.identifier))
+    }
+
+    /**
+     * Loads the item, recording where the time goes in the given trace. The trace travels with the reference,
+     * so the source managers record into it without having to look it up.
+     */
+    fun loadItemOrdered(orderingKey: Any, reference: AudioReference, resultHandler: AudioLoadResultHandler, trace: LoadTrace): Future<Void> {
+        trace.dispatched()
+        val bypassNegative = (reference as? LoadReference)?.bypassNegative ?: false
+        val traced = LoadReference(reference.identifier, bypassNegative, trace, reference.title)
+        return dapm.loadItemOrdered(orderingKey, traced, TracingResultHandler(trace, resultHandler))
     }
 
     /**
@@ -119,7 +158,9 @@ class ExtendedAudioPlayerManager(private val dapm: AudioPlayerManager = DefaultA
      */
     fun encodeTrack(track: AudioTrack): String {
         val baos = ByteArrayOutputStream()
-        dapm.encodeTrack(MessageOutput(baos), track)
+        // Stored Opus frames only exist on this node, but encoded tracks are shared with the others.
+        val encodable = (track as? OpusCachedAudioTrack)?.let { opusSource?.decodeOriginal(it) } ?: track
+        dapm.encodeTrack(MessageOutput(baos), encodable)
 
         track.userData?.takeIf { it is TrackContext }?.let {
             (it as TrackContext).serialize(baos) // Write our user data to the stream.
@@ -138,7 +179,7 @@ class ExtendedAudioPlayerManager(private val dapm: AudioPlayerManager = DefaultA
         val bais = ByteArrayInputStream(decoded)
         val track = dapm.decodeTrack(MessageInput(bais))
 
-        val audioTrack = track?.decodedTrack
+        val audioTrack = track?.decodedTrack?.let { opusSource?.preferStored(it) ?: it }
             ?: return null
 
         val trackContext = TrackContext.deserialize(bais)
@@ -150,6 +191,9 @@ class ExtendedAudioPlayerManager(private val dapm: AudioPlayerManager = DefaultA
         return audioTrack
     }
 
+    private val opusSource: OpusCacheSourceManager?
+        get() = (sourcesByName["opus-cache"] as? TracingSourceManager)?.delegate as? OpusCacheSourceManager
+
     fun decodePlaylist(encodedTracks: List<String>, name: String): BasicAudioPlaylist {
         val decoded = encodedTracks.mapNotNull(::decodeMaybeNullAudioTrack)
         return BasicAudioPlaylist(name, decoded, decoded[0], false)
@@ -8,7 +8,15 @@ import com.sedmelluq.discord.lavaplayer.track.AudioTrack
 import gg.octave.bot.Launcher
 import gg.octave.bot.commands.music.embedTitle
 import gg.octave.bot.commands.music.embedUri
+import gg.octave.bot.metrics.Metrics
+import gg.octave.bot.metrics.jfr.JfrRecorder
+import gg.octave.bot.metrics.jfr.TrackLoadEvent
+import gg.octave.bot.music.sources.caching.CacheWarmer
+import gg.octave.bot.music.sources.caching.CachedLoadFailure
 import gg.octave.bot.music.sources.caching.CachingSourceManager
+import gg.octave.bot.music.sources.routing.IdentifierRouter
+import gg.octave.bot.music.tracing.LoadTrace
+import gg.octave.bot.music.utils.LoadReference
 import gg.octave.bot.music.utils.TrackContext
 import gg.octave.bot.utils.extensions.data
 import gg.octave.bot.utils.extensions.friendlierMessage
@@ -16,6 +24,7 @@ import gg.octave.bot.utils.extensions.premiumGuild
 import gg.octave.bot.utils.extensions.voiceChannel
 import gg.octave.bot.utils.getDisplayValue
 import me.devoxin.flight.api.Context
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.TimeUnit
 
 class LoadResultHandler(
@@ -24,21 +33,26 @@ class LoadResultHandler(
     private val musicManager: MusicManagerV2,
     private val trackContext: TrackContext,
     private val isNext: Boolean,
-    private val footnote: String? = null
+    private val footnote: String? = null,
+    private val bypassNegative: Boolean = false
 ) : AudioLoadResultHandler {
     private val settings = ctx.data
     private val premiumGuild = ctx.premiumGuild
     private var isRetry = false
+    private var loadStartedAt: Long? = System.nanoTime()
+    private var cached = false
+    private val loadEvent = JfrRecorder.begin(::TrackLoadEvent)
 
     override fun trackLoaded(track: AudioTrack) {
-        cache(track)
+        recordLoadTime("track", track.sourceManager?.sourceName)
+        traced("cache") { cache(track) }
 
-        if (!checkVoiceState() || !checkTrack(track, false)) {
+        if (!traced("voice", ::checkVoiceState) || !traced("check") { checkTrack(track, false) }) {
             return
         }
 
         track.userData = trackContext
-        musicManager.enqueue(track, isNext)
+        traced("enqueue") { musicManager.enqueue(track, isNext) }
 
         ctx.send {
             setColor(0x9570D3)
@@ -49,23 +63,26 @@ class LoadResultHandler(
     }
 
     override fun playlistLoaded(playlist: AudioPlaylist) {
-        cache(playlist)
+        recordLoadTime("playlist", playlist.tracks.firstOrNull()?.sourceManager?.sourceName)
+        traced("cache") { cache(playlist) }
 
         if (playlist.isSearchResult) {
             return trackLoaded(playlist.tracks.first())
         }
 
-        if (!checkVoiceState()) {
+        if (!traced("voice", ::checkVoiceState)) {
             return
         }
 
-        val pendingEnqueue = playlist.tracks.filter { checkTrack(it, true) }
+        val pendingEnqueue = traced("check") { playlist.tracks.filter { checkTrack(it, true) } }
         val added = pendingEnqueue.size
         val ignored = playlist.tracks.size - added
 
-        for (track in pendingEnqueue) {
-            track.userData = trackContext
-            musicManager.enqueue(track, isNext)
+        traced("enqueue") {
+            for (track in pendingEnqueue) {
+                track.userData = trackContext
+                musicManager.enqueue(track, isNext)
+            }
         }
 
         ctx.send {
@@ -83,6 +100,16 @@ class LoadResultHandler(
     }
 
     override fun loadFailed(exception: FriendlyException) {
+        if (exception is CachedLoadFailure) {
+            return cachedFailure(exception)
+        }
+
+        recordLoadTime("failed", null)
+
+        if (identifier != null) {
+            CachingSourceManager.cacheFailure(identifier, exception)
+        }
+
         if (musicManager.isIdle) {
             musicManager.destroy()
         }
@@ -97,10 +124,16 @@ class LoadResultHandler(
     override fun noMatches() {
         if (!isRetry && identifier != null) {
             isRetry = true
-            Launcher.players.playerManager.loadItemOrdered(ctx.guild!!.idLong, identifier, this)
+            Launcher.players.playerManager.loadItemOrdered(ctx.guild!!.idLong, LoadReference(identifier, bypassNegative), this)
             return
         }
 
+        recordLoadTime("no_matches", null)
+
+        if (identifier != null) {
+            CachingSourceManager.cacheNoMatches(identifier)
+        }
+
         if (musicManager.isIdle) {
             musicManager.destroy()
         }
@@ -112,6 +145,40 @@ class LoadResultHandler(
         }
     }
 
+    /**
+     * The identifier recently failed or found nothing, and the result came from the negative cache.
+     * If the same user asks for it again shortly after, [loadItem] skips the cache for them.
+     */
+    private fun cachedFailure(failure: CachedLoadFailure) {
+        recordLoadTime(if (failure.isNoMatches) "no_matches" else "failed", "caching")
+
+        if (identifier != null) {
+            val now = System.nanoTime()
+            servedNegative["${ctx.author.idLong}:$identifier"] = now
+
+            if (servedNegative.size > 1000) {
+                servedNegative.values.removeIf { now - it > RETRY_WINDOW }
+            }
+        }
+
+        if (musicManager.isIdle) {
+            musicManager.destroy()
+        }
+
+        val description = if (failure.isNoMatches) {
+            "Nothing found by `$identifier`"
+        } else {
+            "Unable to load the track:\n`${failure.reason}`"
+        }
+
+        ctx.send {
+            setColor(0x9570D3)
+            setTitle("Load Results")
+            setDescription(description)
+            setFooter("This result was cached. Run the command again to retry.")
+        }
+    }
+
     private fun checkVoiceState(): Boolean {
         val manager = ctx.guild?.audioManager
             ?: return false
@@ -187,17 +254,58 @@ class LoadResultHandler(
         }
     }
 
+    private fun recordLoadTime(result: String, source: String?) {
+        val startedAt = loadStartedAt
+            ?: return // Search results are reported as a playlist first, don't count them twice.
+
+        loadStartedAt = null
+        val elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt)
+        Metrics.histogram("octave_bot.track.load_latency", "result:$result", "source:${source ?: "none"}").record(elapsed)
+
+        loadEvent?.let {
+            it.identifier = identifier
+            it.source = source
+            it.result = result
+            it.commit()
+        }
+    }
+
+    private inline fun <T> traced(stage: String, block: () -> T): T {
+        val trace = LoadTrace.current()
+            ?: return block()
+
+        return trace.span(stage, block)
+    }
+
     fun cache(item: AudioItem) {
-        if (identifier != null) {
+        // Search results come through playlistLoaded and then trackLoaded, only the first one is kept.
+        if (identifier != null && !cached) {
+            cached = true
             CachingSourceManager.cache(identifier, item)
+
+            if (IdentifierRouter.classify(identifier)?.cacheable == true) {
+                CacheWarmer.recordLoad(identifier)
+            }
         }
     }
 
     companion object {
+        private val RETRY_WINDOW = TimeUnit.MINUTES.toNanos(1)
+
+        // "<user id>:<identifier>" of negative cache results shown recently, mapped to when they were shown.
+        private val servedNegative = ConcurrentHashMap<String, Long>()
+
         fun loadItem(query: String, ctx: Context, musicManager: MusicManagerV2, trackContext: TrackContext,
                      isNext: Boolean, footnote: String? = null) {
-            val resultHandler = LoadResultHandler(query, ctx, musicManager, trackContext, isNext, footnote)
-            Launcher.players.playerManager.loadItemOrdered(ctx.guild!!.idLong, query, resultHandler)
+            val servedAt = servedNegative.remove("${ctx.author.idLong}:$query")
+            val bypassNegative = servedAt != null && System.nanoTime() - servedAt < RETRY_WINDOW
+
+            val trace = LoadTrace(query)
+            val resultHandler = trace.span("prepare") {
+                LoadResultHandler(query, ctx, musicManager, trackContext, isNext, footnote, bypassNegative)
+            }
+
+            Launcher.players.playerManager.loadItemOrdered(ctx.guild!!.idLong, LoadReference(query, bypassNegative), resultHandler, trace)
         }
     }
 }
@@ -8,6 +8,7 @@ import com.sedmelluq.discord.lavaplayer.track.AudioTrack
 import com.sedmelluq.discord.lavaplayer.track.AudioTrackEndReason
 import com.sedmelluq.discord.lavaplayer.track.playback.MutableAudioFrame
 import gg.octave.bot.Launcher
+import gg.octave.bot.apis.lyrics.LyricsCache
 import gg.octave.bot.commands.music.embedTitle
 import gg.octave.bot.commands.music.embedUri
 import gg.octave.bot.db.OptionsRegistry
@@ -15,6 +16,10 @@ import gg.octave.bot.music.filters.DSPFilter
 import gg.octave.bot.music.radio.PlaylistRadio
 import gg.octave.bot.music.radio.RadioTrackContext
 import gg.octave.bot.music.settings.RepeatOption
+import gg.octave.bot.music.sources.opus.OpusFrameStore
+import gg.octave.bot.music.sources.opus.OpusRecording
+import gg.octave.bot.music.state.PlayerStateStore
+import gg.octave.bot.music.stats.FrameStats
 import gg.octave.bot.music.utils.TrackContext
 import gg.octave.bot.utils.Task
 import gg.octave.bot.utils.extensions.friendlierMessage
@@ -40,6 +45,11 @@ class MusicManagerV2(val guildId: Long, val player: AudioPlayer) : AudioSendHand
     val guild: Guild? get() = Launcher.shardManager.getGuildById(guildId)
     val isAlone: Boolean get() = guild?.selfMember?.voiceState?.channel?.members?.none { !it.user.isBot } ?: true
     val isIdle: Boolean get() = player.playingTrack == null && queue.isEmpty()
+    // Whether the audio has to be decoded and encoded again, rather than passing through the source's Opus frames.
+    val isEncoding: Boolean
+        get() = player.playingTrack?.let {
+            player.volume != 100 || dspFilter.isActive || OPUS_SOURCES.none { source -> source in it.info.uri }
+        } ?: false
 
     // Playback/Music related.
     val queue: RQueue<String> = Launcher.db.redisson.getQueue("playerQueue:$guildId")
@@ -49,12 +59,29 @@ class MusicManagerV2(val guildId: Long, val player: AudioPlayer) : AudioSendHand
     var currentTrack: AudioTrack? = null
         private set
     var radio: RadioTrackContext? = null
+        set(value) {
+            field = value
+            stateChanged()
+        }
     var repeatOption = RepeatOption.NONE
+        set(value) {
+            field = value
+            stateChanged()
+        }
 
     // Settings/internals.
     private val leaveTask = Task(30, TimeUnit.SECONDS) { destroy() }
     val isLeaveQueued: Boolean get() = leaveTask.isRunning
 
+    // Restarting the task on every change debounces bursts of setting changes into a single write.
+    private val saveStateTask = Task(5, TimeUnit.SECONDS) {
+        saveStatePending = false
+        PlayerStateStore.save(this)
+    }
+    @Volatile
+    private var saveStatePending = false // Task.isRunning stays true after the task has run.
+    private var isRestoringState = false
+
     private var lastTimeAnnounced = 0L
     private var lastErrorAnnounced = 0L
     private var errorCount = 0L
@@ -68,6 +95,11 @@ class MusicManagerV2(val guildId: Long, val player: AudioPlayer) : AudioSendHand
     var loops = 0L
         private set
 
+    // Frames of the current track, if it's being recorded into the Opus store.
+    // Written on the player thread, read by the audio send thread.
+    @Volatile
+    private var recording: OpusRecording? = null
+
     // Misc
     private val dbAnnouncementChannel: String? get() = Launcher.db.getGuildData(guildId.toString())?.music?.announcementChannel
     private val currentRequestChannel: TextChannel?
@@ -81,6 +113,27 @@ class MusicManagerV2(val guildId: Long, val player: AudioPlayer) : AudioSendHand
     init {
         player.addListener(this)
         player.volume = Launcher.db.getGuildData(guildId.toString())?.music?.volume ?: 100
+        dspFilter.onChange = ::stateChanged
+    }
+
+    /**
+     * Loads settings saved by a previous player in this guild.
+     */
+    fun restoreState() {
+        isRestoringState = true
+
+        try {
+            PlayerStateStore.load(this)
+        } finally {
+            isRestoringState = false
+        }
+    }
+
+    private fun stateChanged() {
+        if (!isRestoringState) {
+            saveStatePending = true
+            saveStateTask.start()
+        }
     }
 
     fun enqueue(track: AudioTrack, isNext: Boolean) {
@@ -124,6 +177,27 @@ class MusicManagerV2(val guildId: Long, val player: AudioPlayer) : AudioSendHand
         }
     }
 
+    /**
+     * Connects to a voice channel without a command context, e.g. when resuming a player migrated from another node.
+     * @return Whether the connection was opened.
+     */
+    fun reconnect(channel: VoiceChannel): Boolean {
+        val selfMember = guild?.selfMember
+            ?: return false
+
+        if (!selfMember.hasPermission(channel, Permission.VOICE_CONNECT)) {
+            destroy()
+            return false
+        }
+
+        guild?.audioManager?.apply {
+            openAudioConnection(channel)
+            sendingHandler = this@MusicManagerV2
+        }
+
+        return true
+    }
+
     fun moveAudioConnection(channel: VoiceChannel) {
         guild?.let {
             if (!it.selfMember.voiceState!!.inVoiceChannel()) {
@@ -223,6 +297,15 @@ class MusicManagerV2(val guildId: Long, val player: AudioPlayer) : AudioSendHand
     fun destroy() = Launcher.players.destroy(guildId)
 
     fun cleanup() {
+        if (saveStatePending) {
+            saveStateTask.stop()
+            saveStatePending = false
+            PlayerStateStore.save(this)
+        }
+
+        dspFilter.onChange = null
+        recording?.let { OpusFrameStore.finishRecording(it, false) }
+        recording = null
         player.destroy()
         dspFilter.clearFilters()
         queue.expire(4, TimeUnit.HOURS)
@@ -235,6 +318,9 @@ class MusicManagerV2(val guildId: Long, val player: AudioPlayer) : AudioSendHand
         lastPlayedAt = System.currentTimeMillis()
         this.lastTrack = track
 
+        recording?.let { OpusFrameStore.finishRecording(it, endReason == AudioTrackEndReason.FINISHED) }
+        recording = null
+
         if (endReason.mayStartNext) {
             nextTrack()
         }
@@ -289,20 +375,41 @@ class MusicManagerV2(val guildId: Long, val player: AudioPlayer) : AudioSendHand
         val announce = currentTrack?.identifier != track.identifier
         currentTrack = track
 
+        recording?.let { OpusFrameStore.finishRecording(it, false) }
+        recording = OpusFrameStore.startRecording(track)
+
+        LyricsCache.prefetch(guildId) {
+            queue.peek()?.let { Launcher.players.playerManager.decodeAudioTrack(it).info.title }
+        }
+
         if (announce && OptionsRegistry.ofGuild(guildId.toString()).music.announce) {
             announceNext(track)
         }
     }
 
     // *----------- AudioSendHandler -----------*
+    // Must be array-backed, JDA reads the frame through array() when building the packet.
     private val frameBuffer = ByteBuffer.allocate(StandardAudioDataFormats.DISCORD_OPUS.maximumChunkSize())
     private val lastFrame = MutableAudioFrame().also { it.setBuffer(frameBuffer) }
+    val frameStats = FrameStats()
+
+    override fun canProvide(): Boolean {
+        val provided = player.provide(lastFrame)
+        frameStats.record(provided, player.playingTrack != null && !player.isPaused)
+
+        if (provided) {
+            recording?.append(lastFrame, player.volume == 100 && !dspFilter.isActive)
+        }
+
+        return provided
+    }
 
-    override fun canProvide() = player.provide(lastFrame)
     override fun provide20MsAudio() = frameBuffer.flip()
     override fun isOpus() = true
 
     companion object {
+        private val OPUS_SOURCES = listOf("youtube", "soundcloud")
+
         fun getQueueForGuild(guildId: String): RQueue<String> {
             return Launcher.db.redisson.getQueue("playerQueue:$guildId")
         }
@@ -26,6 +26,9 @@ package gg.octave.bot.music
 
 import gg.octave.bot.Launcher
 import gg.octave.bot.db.OptionsRegistry
+import gg.octave.bot.metrics.Metrics
+import gg.octave.bot.music.state.PlayerMigrator
+import gg.octave.bot.music.stats.FrameStatsCollector
 import gg.octave.bot.utils.Scheduler
 import net.dv8tion.jda.api.entities.Guild
 import java.util.concurrent.ConcurrentHashMap
@@ -35,7 +38,10 @@ import java.util.concurrent.TimeUnit
 class PlayerRegistry {
     val playerManager = ExtendedAudioPlayerManager()
     val registry = ConcurrentHashMap<Long, MusicManagerV2>(Launcher.configuration.musicLimit)
+    private val shardIndex = ConcurrentHashMap<Int, MutableSet<MusicManagerV2>>()
     private val executor = Executors.newSingleThreadScheduledExecutor()
+    val frameStats = FrameStatsCollector(this)
+    val migrator = PlayerMigrator(this)
 
     init {
         Scheduler.fixedRateScheduleWithSuppression(executor, 3, 3, TimeUnit.MINUTES) { sweep() }
@@ -57,12 +63,31 @@ class PlayerRegistry {
         }
     }
 
-    fun get(guild: Guild?) = registry.computeIfAbsent(guild!!.idLong) { MusicManagerV2(guild.idLong, playerManager.createPlayer()) }
+    fun get(guild: Guild?): MusicManagerV2 {
+        registry[guild!!.idLong]?.let { return it }
+
+        // Restored before the manager is published, so nobody can change settings the restore would overwrite,
+        // and outside the map update, so the Redis read doesn't hold up other guilds in the same bin.
+        val created = MusicManagerV2(guild.idLong, playerManager.createPlayer())
+            .also(MusicManagerV2::restoreState)
+
+        registry.putIfAbsent(guild.idLong, created)?.let { existing ->
+            created.player.destroy() // Another thread got there first.
+            return existing
+        }
+
+        playersOnShard(shardOf(created.guildId)).add(created)
+        return created
+    }
 
     fun getExisting(id: Long) = registry[id]
     fun getExisting(guild: Guild?) = getExisting(guild!!.idLong)
     fun destroy(id: Long) {
-        registry.remove(id)?.cleanup()
+        val manager = registry.remove(id)
+            ?: return
+
+        shardIndex[shardOf(id)]?.remove(manager)
+        manager.cleanup()
     }
 
     fun destroy(guild: Guild?) = destroy(guild!!.idLong)
@@ -71,6 +96,21 @@ class PlayerRegistry {
 
     fun size() = registry.size
 
+    /**
+     * @return The players belonging to guilds on the given shard.
+     */
+    fun playersOn(shardId: Int): Set<MusicManagerV2> = shardIndex[shardId] ?: emptySet()
+    fun playerCount(shardId: Int) = shardIndex[shardId]?.size ?: 0
+
+    private fun playersOnShard(shardId: Int) = shardIndex.computeIfAbsent(shardId) {
+        Metrics.gauge("octave_bot.shard.players", "shard:$shardId") { playerCount(shardId) }
+        ConcurrentHashMap.newKeySet()
+    }
+
+    companion object {
+        fun shardOf(guildId: Long) = ((guildId shr 22) % Launcher.credentials.totalShards).toInt()
+    }
+
     private fun isAllDayMusic(guildId: String): Boolean {
         val premium = Launcher.database.getPremiumGuild(guildId)
         val guildData = OptionsRegistry.ofGuild(guildId)
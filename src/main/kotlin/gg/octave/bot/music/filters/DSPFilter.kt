@@ -30,8 +30,13 @@ import com.sedmelluq.discord.lavaplayer.filter.UniversalPcmAudioFilter
 import com.sedmelluq.discord.lavaplayer.format.AudioDataFormat
 import com.sedmelluq.discord.lavaplayer.player.AudioPlayer
 import gg.octave.bot.music.settings.BoostSetting
+import java.io.DataInputStream
+import java.io.DataOutputStream
 
 class DSPFilter(private val player: AudioPlayer) {
+    /** Invoked whenever any filter setting changes. */
+    var onChange: (() -> Unit)? = null
+
     // Equalizer properties
     var bassBoost = BoostSetting.OFF
         set(value) {
@@ -94,6 +99,9 @@ class DSPFilter(private val player: AudioPlayer) {
             applyFilters()
         }
 
+    val isActive: Boolean
+        get() = karaokeEnable || timescaleEnable || tremoloEnable || bassBoost != BoostSetting.OFF
+
     fun buildFilters(configs: List<FilterConfig<*>>, format: AudioDataFormat,
                      output: UniversalPcmAudioFilter): List<AudioFilter> {
         if (configs.isEmpty()) {
@@ -115,6 +123,8 @@ class DSPFilter(private val player: AudioPlayer) {
     }
 
     fun applyFilters() {
+        onChange?.invoke()
+
         player.setFilterFactory { _, format, output ->
             val filterConfigs = mutableListOf<FilterConfig<*>>()
 
@@ -167,4 +177,28 @@ class DSPFilter(private val player: AudioPlayer) {
         tsRate = 1.0
         tsSpeed = 1.0
     }
+
+    fun serialize(writer: DataOutputStream) {
+        writer.writeUTF(bassBoost.name)
+        writer.writeFloat(kLevel)
+        writer.writeFloat(kFilterBand)
+        writer.writeFloat(kFilterWidth)
+        writer.writeDouble(tsSpeed)
+        writer.writeDouble(tsPitch)
+        writer.writeDouble(tsRate)
+        writer.writeFloat(tDepth)
+        writer.writeFloat(tFrequency)
+    }
+
+    fun deserialize(reader: DataInputStream) {
+        bassBoost = BoostSetting.valueOf(reader.readUTF())
+        kLevel = reader.readFloat()
+        kFilterBand = reader.readFloat()
+        kFilterWidth = reader.readFloat()
+        tsSpeed = reader.readDouble()
+        tsPitch = reader.readDouble()
+        tsRate = reader.readDouble()
+        tDepth = reader.readFloat()
+        tFrequency = reader.readFloat()
+    }
 }
@@ -0,0 +1,200 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.music.radio
+
+import com.sedmelluq.discord.lavaplayer.player.AudioLoadResultHandler
+import com.sedmelluq.discord.lavaplayer.tools.FriendlyException
+import com.sedmelluq.discord.lavaplayer.track.AudioPlaylist
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack
+import gg.octave.bot.Launcher
+import gg.octave.bot.metrics.Metrics
+import gg.octave.bot.utils.Scheduler
+import org.slf4j.LoggerFactory
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Keeps a few already resolved tracks per `dfm` library, so a radio guild's next track is a clone
+ * from memory instead of a load at the moment its queue runs dry. Every guild on a station draws
+ * from the same buffer.
+ *
+ * Buffers are topped up in the background for libraries that were played recently. URLs that no
+ * longer resolve are taken out of rotation, and buffered tracks older than [MAX_AGE] are dropped
+ * so what's handed out was validated recently.
+ */
+object RadioStationPool {
+    private val log = LoggerFactory.getLogger(RadioStationPool::class.java)
+    private val executor = Executors.newSingleThreadScheduledExecutor()
+    private val stations = ConcurrentHashMap<String, Station>()
+
+    private const val BUFFER_SIZE = 5
+    private const val MAX_ATTEMPTS = 3
+    private val MAX_AGE = TimeUnit.HOURS.toMillis(1)
+    private val IDLE_AFTER = TimeUnit.HOURS.toMillis(1)
+    private val LOAD_TIMEOUT = TimeUnit.SECONDS.toMillis(15)
+
+    private val hits = Metrics.counter("octave_bot.radio.pool", "outcome:hit")
+    private val misses = Metrics.counter("octave_bot.radio.pool", "outcome:miss")
+    private val removed = Metrics.counter("octave_bot.radio.removed_urls")
+
+    init {
+        Metrics.gauge("octave_bot.radio.buffered") { stations.values.sumBy { it.buffer.size } }
+        Scheduler.fixedRateScheduleWithSuppression(executor, 15, 15, TimeUnit.SECONDS) { refillAll() }
+    }
+
+    /**
+     * @return A track from [library]'s buffer, or a freshly resolved one if the buffer is empty.
+     */
+    fun nextTrack(library: String): CompletableFuture<AudioTrack?> {
+        val station = stations.computeIfAbsent(library, ::Station)
+        station.lastUsed = System.currentTimeMillis()
+
+        val buffered = station.take()
+        refill(station)
+
+        if (buffered != null) {
+            hits.increment()
+            return CompletableFuture.completedFuture(buffered.makeClone())
+        }
+
+        misses.increment()
+        return resolveAny(station, 1)
+    }
+
+    private fun refillAll() {
+        val now = System.currentTimeMillis()
+
+        for (station in stations.values) {
+            if (now - station.lastUsed > IDLE_AFTER) {
+                station.buffer.clear()
+            } else {
+                refill(station)
+            }
+        }
+    }
+
+    /**
+     * Tops up the station's buffer one track at a time, chaining each load on the previous one so no
+     * thread waits on them. A station has at most one refill in progress.
+     */
+    private fun refill(station: Station) {
+        if (station.refilling.compareAndSet(false, true)) {
+            fillNext(station)
+        }
+    }
+
+    private fun fillNext(station: Station) {
+        station.dropStale()
+
+        if (station.buffer.size >= BUFFER_SIZE) {
+            station.refilling.set(false)
+            return
+        }
+
+        resolveAny(station, 1).whenComplete { track, error ->
+            if (track == null) {
+                station.refilling.set(false)
+                log.warn("Unable to refill the radio buffer of {}", station.library, error)
+            } else {
+                station.buffer.add(Buffered(track, System.currentTimeMillis()))
+                fillNext(station)
+            }
+        }
+    }
+
+    private fun resolveAny(station: Station, attempt: Int): CompletableFuture<AudioTrack?> {
+        if (attempt > MAX_ATTEMPTS) {
+            return CompletableFuture.completedFuture(null)
+        }
+
+        val url = Launcher.discordFm.getRandomSong(station.library)
+            ?: return CompletableFuture.completedFuture(null)
+
+        return resolve(station, url).thenCompose { it?.let { CompletableFuture.completedFuture<AudioTrack?>(it) } ?: resolveAny(station, attempt + 1) }
+    }
+
+    private fun resolve(station: Station, url: String): CompletableFuture<AudioTrack?> {
+        val future = CompletableFuture<AudioTrack?>()
+
+        Launcher.players.playerManager.loadItemOrdered(station, url, object : AudioLoadResultHandler {
+            override fun trackLoaded(track: AudioTrack) {
+                future.complete(track)
+            }
+
+            override fun playlistLoaded(playlist: AudioPlaylist) = trackLoaded(playlist.tracks.first())
+
+            override fun noMatches() {
+                remove(station, url, "no matches")
+                future.complete(null)
+            }
+
+            override fun loadFailed(exception: FriendlyException) {
+                // Only failures that won't go away by themselves take a URL out of rotation.
+                if (exception.severity == FriendlyException.Severity.COMMON) {
+                    remove(station, url, exception.message)
+                }
+
+                future.complete(null)
+            }
+        })
+
+        return future.completeOnTimeout(null, LOAD_TIMEOUT, TimeUnit.MILLISECONDS)
+    }
+
+    private fun remove(station: Station, url: String, reason: String?) {
+        log.info("Removing {} from the {} radio ({})", url, station.library, reason)
+        Launcher.discordFm.removeSong(station.library, url)
+        removed.increment()
+    }
+
+    private class Buffered(val track: AudioTrack, val resolvedAt: Long)
+
+    private class Station(val library: String) {
+        val buffer = ConcurrentLinkedQueue<Buffered>()
+        val refilling = AtomicBoolean()
+        @Volatile
+        var lastUsed = System.currentTimeMillis()
+
+        fun take(): AudioTrack? {
+            val cutoff = System.currentTimeMillis() - MAX_AGE
+            var next = buffer.poll()
+
+            while (next != null && next.resolvedAt < cutoff) {
+                next = buffer.poll()
+            }
+
+            return next?.track
+        }
+
+        fun dropStale() {
+            val cutoff = System.currentTimeMillis() - MAX_AGE
+            buffer.removeIf { it.resolvedAt < cutoff }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.music.routeplanner
+
+import java.net.Inet6Address
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Outcome history of one local address. Every failure quarantines the address for twice as long as
+ * the previous one did, and every success takes one strike off again.
+ */
+class AddressHealth(val address: Inet6Address) {
+    val successes = AtomicLong()
+    val rateLimits = AtomicLong()
+    val captchas = AtomicLong()
+    val errors = AtomicLong()
+
+    // Exponentially weighted success rate and latency, starting out optimistic.
+    @Volatile
+    var successRate = 1.0
+        private set
+    @Volatile
+    var latencyMs = 0.0
+        private set
+    @Volatile
+    var strikes = 0
+        private set
+    @Volatile
+    var quarantinedUntil = 0L
+        private set
+    @Volatile
+    var lastFailure: Failure? = null
+        private set
+
+    val isQuarantined: Boolean
+        get() = quarantinedUntil > System.currentTimeMillis()
+
+    /**
+     * Healthy, fast addresses score close to 1. Quarantined addresses score 0.
+     */
+    val score: Double
+        get() = if (isQuarantined) 0.0 else successRate / (1 + latencyMs / 1000)
+
+    @Synchronized
+    fun success(latencyMs: Long) {
+        successes.incrementAndGet()
+        successRate = successRate * (1 - WEIGHT) + WEIGHT
+        this.latencyMs = if (this.latencyMs == 0.0) latencyMs.toDouble() else this.latencyMs * (1 - WEIGHT) + latencyMs * WEIGHT
+        strikes = (strikes - 1).coerceAtLeast(0)
+    }
+
+    @Synchronized
+    fun failure(failure: Failure) {
+        when (failure) {
+            Failure.RATE_LIMITED -> rateLimits.incrementAndGet()
+            Failure.CAPTCHA -> captchas.incrementAndGet()
+            Failure.ERROR -> errors.incrementAndGet()
+        }
+
+        lastFailure = failure
+        successRate *= (1 - WEIGHT)
+        strikes++
+
+        val backoff = (BASE_QUARANTINE shl (strikes - 1).coerceAtMost(16)).coerceAtMost(MAX_QUARANTINE)
+        quarantinedUntil = System.currentTimeMillis() + backoff
+    }
+
+    @Synchronized
+    fun reset() {
+        strikes = 0
+        quarantinedUntil = 0
+        successRate = 1.0
+    }
+
+    enum class Failure {
+        RATE_LIMITED, CAPTCHA, ERROR
+    }
+
+    companion object {
+        private const val WEIGHT = 0.2
+        private val BASE_QUARANTINE = TimeUnit.MINUTES.toMillis(1)
+        private val MAX_QUARANTINE = TimeUnit.HOURS.toMillis(6)
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.music.routeplanner
+
+import com.sedmelluq.discord.lavaplayer.source.youtube.YoutubeAudioSourceManager
+import com.sedmelluq.discord.lavaplayer.source.youtube.YoutubeHttpContextFilter
+import com.sedmelluq.discord.lavaplayer.tools.http.ExtendedHttpConfigurable
+import com.sedmelluq.discord.lavaplayer.tools.http.HttpContextFilter
+import com.sedmelluq.lava.extensions.youtuberotator.tools.ip.Ipv6Block
+import gg.octave.bot.metrics.Metrics
+import org.apache.http.HttpException
+import org.apache.http.HttpHost
+import org.apache.http.HttpRequest
+import org.apache.http.conn.routing.HttpRoute
+import org.apache.http.conn.routing.HttpRoutePlanner
+import org.apache.http.protocol.HttpContext
+import org.slf4j.LoggerFactory
+import java.net.Inet6Address
+import java.net.InetAddress
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.ThreadLocalRandom
+
+/**
+ * Routes requests through addresses of an IPv6 block, preferring the ones that have been working.
+ *
+ * A pool of addresses is kept with their [AddressHealth]. Each request picks one at random, weighted
+ * by its score, so healthy and fast addresses are used more. Addresses that were rate limited, sent
+ * to a captcha or failed outright are quarantined with exponential backoff. When too few healthy
+ * addresses are left, fresh ones are drawn from the block.
+ */
+class HealthScoredRoutePlanner(
+    val block: Ipv6Block,
+    private val isAllowed: (InetAddress) -> Boolean = { true }
+) : HttpRoutePlanner {
+    private val pool = CopyOnWriteArrayList<AddressHealth>()
+
+    val addresses: List<AddressHealth>
+        get() = pool.toList()
+
+    init {
+        repeat(POOL_SIZE) { addFreshAddress() }
+
+        Metrics.gauge("octave_bot.ipv6.addresses", "state:healthy") { pool.count { !it.isQuarantined } }
+        Metrics.gauge("octave_bot.ipv6.addresses", "state:quarantined") { pool.count { it.isQuarantined } }
+    }
+
+    /**
+     * Routes the YouTube source's requests through this planner, and tracks their outcomes.
+     */
+    fun install(source: YoutubeAudioSourceManager) {
+        configure(source.mainHttpConfiguration, YoutubeHttpContextFilter())
+        configure(source.searchHttpConfiguration, null)
+    }
+
+    private fun configure(configuration: ExtendedHttpConfigurable, delegate: HttpContextFilter?) {
+        configuration.configureBuilder { it.setRoutePlanner(this) }
+        configuration.setHttpContextFilter(HealthTrackingFilter(this, delegate))
+    }
+
+    @Throws(HttpException::class)
+    override fun determineRoute(target: HttpHost, request: HttpRequest, context: HttpContext): HttpRoute {
+        // Redirects are routed again, they have to go out of the address the request was assigned.
+        val health = context.getAttribute(ADDRESS_ATTRIBUTE) as? AddressHealth
+            ?: choose().also { context.setAttribute(ADDRESS_ATTRIBUTE, it) }
+
+        val remote = target.address
+            ?: InetAddress.getAllByName(target.hostName).firstOrNull { it is Inet6Address }
+            ?: throw HttpException("Unable to resolve ${target.hostName} to an IPv6 address")
+
+        val secure = target.schemeName.equals("https", ignoreCase = true)
+        val port = if (target.port > 0) target.port else if (secure) 443 else 80
+
+        return HttpRoute(HttpHost(remote, target.hostName, port, target.schemeName), health.address, secure)
+    }
+
+    fun reset() {
+        pool.forEach(AddressHealth::reset)
+    }
+
+    internal fun recordSuccess(health: AddressHealth, latencyMs: Long) {
+        health.success(latencyMs)
+        Metrics.counter("octave_bot.ipv6.requests", "outcome:success").increment()
+        Metrics.histogram("octave_bot.ipv6.latency").record(latencyMs)
+    }
+
+    internal fun recordFailure(health: AddressHealth, failure: AddressHealth.Failure) {
+        health.failure(failure)
+        Metrics.counter("octave_bot.ipv6.requests", "outcome:${failure.name.toLowerCase()}").increment()
+        log.debug("Quarantined {} after {} (strike {})", health.address.hostAddress, failure, health.strikes)
+    }
+
+    internal fun choose(): AddressHealth {
+        var healthy = pool.filter { !it.isQuarantined }
+
+        if (healthy.size < POOL_SIZE / 2) {
+            addFreshAddress()
+            healthy = pool.filter { !it.isQuarantined }
+        }
+
+        if (healthy.isEmpty()) {
+            // Everything is quarantined, use whichever address comes out of quarantine first.
+            return pool.minBy { it.quarantinedUntil }!!
+        }
+
+        val total = healthy.sumByDouble { it.score }
+        var pick = ThreadLocalRandom.current().nextDouble(total)
+
+        for (health in healthy) {
+            pick -= health.score
+
+            if (pick <= 0) {
+                return health
+            }
+        }
+
+        return healthy.last()
+    }
+
+    @Synchronized
+    private fun addFreshAddress() {
+        val address = generateSequence { block.randomAddress }
+            .take(10)
+            .firstOrNull { isAllowed(it) && pool.none { health -> health.address == it } }
+            ?: return
+
+        pool.add(AddressHealth(address))
+
+        // Forget the addresses that have been failing the longest, they're unlikely to recover soon.
+        while (pool.size > MAX_POOL_SIZE) {
+            pool.filter { it.isQuarantined }.maxBy { it.quarantinedUntil }?.let { pool.remove(it) }
+                ?: break
+        }
+    }
+
+    companion object {
+        private val log = LoggerFactory.getLogger(HealthScoredRoutePlanner::class.java)
+
+        internal const val ADDRESS_ATTRIBUTE = "octave-route-address"
+        private const val POOL_SIZE = 32
+        private const val MAX_POOL_SIZE = 128
+    }
+}
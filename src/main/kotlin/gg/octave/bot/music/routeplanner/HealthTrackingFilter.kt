@@ -0,0 +1,137 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.music.routeplanner
+
+import com.sedmelluq.discord.lavaplayer.tools.http.HttpContextFilter
+import org.apache.http.HttpResponse
+import org.apache.http.HttpStatus
+import org.apache.http.client.methods.HttpUriRequest
+import org.apache.http.client.protocol.HttpClientContext
+import org.apache.http.conn.ConnectTimeoutException
+import java.net.BindException
+import java.net.ConnectException
+import java.net.NoRouteToHostException
+import java.net.SocketTimeoutException
+import java.util.concurrent.TimeUnit
+
+/**
+ * Reports the outcome of every request to the [HealthScoredRoutePlanner], and retries requests that
+ * were rate limited or sent to a captcha, which routes them through a different address.
+ */
+class HealthTrackingFilter(
+    private val planner: HealthScoredRoutePlanner,
+    private val delegate: HttpContextFilter?
+) : HttpContextFilter {
+    override fun onContextOpen(context: HttpClientContext) {
+        delegate?.onContextOpen(context)
+    }
+
+    override fun onContextClose(context: HttpClientContext) {
+        delegate?.onContextClose(context)
+    }
+
+    override fun onRequest(context: HttpClientContext, request: HttpUriRequest, isRepetition: Boolean) {
+        if (!isRepetition) {
+            context.setAttribute(RETRIES_ATTRIBUTE, 0)
+        }
+
+        // Chosen once per attempt so that every redirect hop is routed, and blamed, on the same address.
+        // Retries get a new one.
+        context.setAttribute(HealthScoredRoutePlanner.ADDRESS_ATTRIBUTE, planner.choose())
+
+        context.setAttribute(STARTED_ATTRIBUTE, System.nanoTime())
+        delegate?.onRequest(context, request, isRepetition)
+    }
+
+    override fun onRequestResponse(context: HttpClientContext, request: HttpUriRequest, response: HttpResponse): Boolean {
+        val health = context.getAttribute(HealthScoredRoutePlanner.ADDRESS_ATTRIBUTE) as? AddressHealth
+
+        if (health != null) {
+            val failure = when {
+                isCaptcha(context, response) -> AddressHealth.Failure.CAPTCHA
+                response.statusLine.statusCode == HttpStatus.SC_TOO_MANY_REQUESTS -> AddressHealth.Failure.RATE_LIMITED
+                else -> null
+            }
+
+            if (failure == null) {
+                val startedAt = context.getAttribute(STARTED_ATTRIBUTE) as? Long ?: System.nanoTime()
+                planner.recordSuccess(health, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt))
+            } else {
+                planner.recordFailure(health, failure)
+
+                if (retry(context)) {
+                    return true
+                }
+                // Out of retries, so let the delegate see the response and raise its own error for it.
+            }
+        }
+
+        return delegate?.onRequestResponse(context, request, response) ?: false
+    }
+
+    override fun onRequestException(context: HttpClientContext, request: HttpUriRequest, error: Throwable): Boolean {
+        val health = context.getAttribute(HealthScoredRoutePlanner.ADDRESS_ATTRIBUTE) as? AddressHealth
+
+        if (health != null && isAddressError(error)) {
+            planner.recordFailure(health, AddressHealth.Failure.ERROR)
+        }
+
+        return delegate?.onRequestException(context, request, error) ?: false
+    }
+
+    private fun retry(context: HttpClientContext): Boolean {
+        val retries = context.getAttribute(RETRIES_ATTRIBUTE) as? Int ?: 0
+
+        if (retries >= MAX_RETRIES) {
+            return false
+        }
+
+        context.setAttribute(RETRIES_ATTRIBUTE, retries + 1)
+        return true
+    }
+
+    private fun isCaptcha(context: HttpClientContext, response: HttpResponse): Boolean {
+        // Redirects are followed before the response gets here, so the captcha page shows up in the
+        // redirect chain rather than in a Location header.
+        val locations = context.redirectLocations.orEmpty().map { it.toString() } +
+            listOfNotNull(response.getFirstHeader("Location")?.value)
+
+        return locations.any { "/sorry/" in it || "google.com/sorry" in it }
+    }
+
+    /**
+     * Whether the error says something about the local address, rather than about DNS or the remote host's response.
+     */
+    private fun isAddressError(error: Throwable): Boolean {
+        return error is ConnectException || error is NoRouteToHostException || error is BindException ||
+            error is SocketTimeoutException || error is ConnectTimeoutException
+    }
+
+    companion object {
+        private const val STARTED_ATTRIBUTE = "octave-route-started"
+        private const val RETRIES_ATTRIBUTE = "octave-route-retries"
+        private const val MAX_RETRIES = 2
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.music.send
+
+import com.sedmelluq.discord.lavaplayer.jdaudp.NativeAudioSendFactory
+import gg.octave.bot.entities.Configuration
+import gg.octave.bot.music.MusicManagerV2
+import net.dv8tion.jda.api.audio.factory.IAudioSendFactory
+import net.dv8tion.jda.api.audio.factory.IAudioSendSystem
+import net.dv8tion.jda.api.audio.factory.IPacketProvider
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Audio send factory that gives each voice connection its own buffer size.
+ *
+ * Native send factories can only be configured with a single buffer duration, so one factory is kept per
+ * buffer tier and connections are moved between them by [AdaptiveSendSystem.resize]. Tiers are chosen from
+ * the frame delivery stats of the connection's player: connections whose send side stalls grow a tier,
+ * connections that have been stable for a while shrink back down. Missed frames aren't considered, they're
+ * the source or decoder falling behind, which a bigger send buffer doesn't help with.
+ *
+ * Changing tiers discards whatever the old tier has buffered, so a change is only applied once the player
+ * hasn't provided a frame for a whole buffer's length, i.e. the old tier has drained.
+ */
+class AdaptiveAudioSendFactory(config: Configuration) : IAudioSendFactory {
+    /** Buffer durations in milliseconds, smallest first. */
+    val tiers = listOf(config.bufferMinDuration, config.bufferDuration, config.bufferMaxDuration)
+        .distinct()
+        .sorted()
+
+    private val baseTier = tiers.indexOf(config.bufferDuration)
+    private val factories = arrayOfNulls<NativeAudioSendFactory>(tiers.size)
+    val systems = ConcurrentHashMap<Long, AdaptiveSendSystem>()
+
+    // Remember the tier each guild settled on, so a reconnect doesn't have to learn it again.
+    private val lastTiers = Collections.synchronizedMap(object : LinkedHashMap<Long, Int>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Long, Int>) = size > MAX_REMEMBERED_TIERS
+    })
+
+    override fun createSendSystem(packetProvider: IPacketProvider): IAudioSendSystem {
+        val guildId = packetProvider.connectedChannel.guild.idLong
+        val tier = lastTiers[guildId] ?: baseTier
+        return AdaptiveSendSystem(this, guildId, packetProvider, tier).also { systems[guildId] = it }
+    }
+
+    internal fun createDelegate(tier: Int, packetProvider: IPacketProvider): IAudioSendSystem {
+        return factoryFor(tier).createSendSystem(packetProvider)
+    }
+
+    @Synchronized
+    private fun factoryFor(tier: Int): NativeAudioSendFactory {
+        return factories[tier] ?: NativeAudioSendFactory(tiers[tier]).also { factories[tier] = it }
+    }
+
+    internal fun onShutdown(system: AdaptiveSendSystem) {
+        systems.remove(system.guildId, system)
+        lastTiers[system.guildId] = system.tier
+    }
+
+    fun bufferDurationOf(guildId: Long) = systems[guildId]?.bufferDuration
+
+    /**
+     * @return The number of connections in each tier, keyed by buffer duration.
+     */
+    fun tierCounts(): Map<Int, Int> {
+        val counts = systems.values.groupingBy { it.bufferDuration }.eachCount()
+        return tiers.associateWith { counts[it] ?: 0 }
+    }
+
+    /**
+     * Re-evaluates the buffer tier of a player's connection. Called after each frame stats sampling window.
+     */
+    fun evaluate(manager: MusicManagerV2) {
+        val system = systems[manager.guildId]
+            ?: return
+        val stats = manager.frameStats
+        val floor = if (needsHeadroom(manager)) baseTier else 0
+
+        // A stall longer than half the buffer means the buffer very nearly ran dry.
+        val struggling = stats.windowLongestGapMs > system.bufferDuration / 2
+
+        val target = when {
+            struggling -> {
+                system.stableWindows = 0
+                (system.tier + 1).coerceAtMost(tiers.size - 1)
+            }
+            system.tier < floor -> floor
+            ++system.stableWindows >= STABLE_WINDOWS_BEFORE_SHRINK && system.tier > floor -> {
+                system.stableWindows = 0
+                system.tier - 1
+            }
+            else -> null
+        }
+
+        target?.let(system::requestResize)
+
+        val sinceLastFrame = stats.msSinceLastFrame
+        if (sinceLastFrame < 0 || sinceLastFrame >= system.bufferDuration) {
+            system.applyPendingResize()
+        }
+    }
+
+    /**
+     * Streams and filtered/transcoded players have far more jitter than plain Opus passthrough,
+     * so they never drop below the configured base buffer.
+     */
+    private fun needsHeadroom(manager: MusicManagerV2): Boolean {
+        val track = manager.player.playingTrack
+            ?: return false
+
+        return track.info.isStream || manager.player.volume != 100 || manager.dspFilter.isActive
+    }
+
+    companion object {
+        private const val MAX_REMEMBERED_TIERS = 10000
+        private const val STABLE_WINDOWS_BEFORE_SHRINK = 30
+    }
+}
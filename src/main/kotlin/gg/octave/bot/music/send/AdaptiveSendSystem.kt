@@ -0,0 +1,120 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.music.send
+
+import net.dv8tion.jda.api.audio.factory.IAudioSendSystem
+import net.dv8tion.jda.api.audio.factory.IPacketProvider
+import java.util.concurrent.ConcurrentMap
+
+/**
+ * Send system that delegates to the native send system of its current buffer tier,
+ * swapping the delegate when the tier changes.
+ */
+class AdaptiveSendSystem(
+    private val factory: AdaptiveAudioSendFactory,
+    val guildId: Long,
+    private val packetProvider: IPacketProvider,
+    tier: Int
+) : IAudioSendSystem {
+    private var delegate: IAudioSendSystem? = null
+    private var contextMap: ConcurrentMap<String, String>? = null
+    private var running = false
+
+    @Volatile
+    var tier = tier
+        private set
+    val bufferDuration: Int get() = factory.tiers[tier]
+
+    // Only touched by the frame stats collector thread.
+    internal var stableWindows = 0
+
+    // Tier to move to once the current one has drained, or -1.
+    @Volatile
+    var pendingTier = -1
+        private set
+
+    @Synchronized
+    override fun start() {
+        running = true
+        startDelegate()
+    }
+
+    @Synchronized
+    override fun shutdown() {
+        running = false
+        delegate?.shutdown()
+        delegate = null
+        factory.onShutdown(this)
+    }
+
+    @Synchronized
+    override fun setContextMap(contextMap: ConcurrentMap<String, String>?) {
+        this.contextMap = contextMap
+        delegate?.setContextMap(contextMap)
+    }
+
+    /**
+     * Moves this connection to another buffer tier. Any packets buffered by the old tier are discarded,
+     * so this should only be called while nothing is playing.
+     */
+    @Synchronized
+    fun resize(newTier: Int) {
+        pendingTier = -1
+
+        if (newTier == tier || newTier !in factory.tiers.indices) {
+            return
+        }
+
+        tier = newTier
+
+        if (running) {
+            delegate?.shutdown()
+            startDelegate()
+        }
+    }
+
+    /**
+     * Defers a resize until the current tier has drained, see [applyPendingResize].
+     */
+    fun requestResize(newTier: Int) {
+        pendingTier = newTier
+    }
+
+    /**
+     * Applies a deferred resize. Only called once the player hasn't provided a frame for longer than the
+     * buffer duration, so nothing queued is lost.
+     */
+    @Synchronized
+    fun applyPendingResize() {
+        pendingTier.takeIf { it >= 0 }?.let(::resize)
+    }
+
+    private fun startDelegate() {
+        delegate = factory.createDelegate(tier, packetProvider).also {
+            it.setContextMap(contextMap)
+            it.start()
+        }
+    }
+}
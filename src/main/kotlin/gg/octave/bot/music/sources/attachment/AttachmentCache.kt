@@ -0,0 +1,191 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.music.sources.attachment
+
+import gg.octave.bot.metrics.Metrics
+import org.slf4j.LoggerFactory
+import java.io.IOException
+import java.io.OutputStream
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
+import java.util.stream.Collectors
+
+/**
+ * Bounded on-disk LRU cache of attachment bytes, keyed by CDN URL.
+ *
+ * The query string is ignored when building keys, since Discord signs attachment URLs and the
+ * same upload is requested with different signatures over time. Only the index is kept in memory;
+ * the files themselves are read through [MappedSeekableInputStream].
+ */
+class AttachmentCache(private val directory: Path, private val maxBytes: Long, val maxFileBytes: Long) {
+    // Access-ordered, so iteration starts at the least recently used entry. Guarded by itself.
+    private val entries = LinkedHashMap<String, Long>(16, 0.75f, true)
+    private var totalBytes = 0L
+    private val downloads = ConcurrentHashMap<String, Any>()
+
+    val size: Long
+        get() = synchronized(entries) { totalBytes }
+
+    init {
+        Files.createDirectories(directory)
+
+        val existing = Files.list(directory).use { files ->
+            files.filter { Files.isRegularFile(it) }.collect(Collectors.toList())
+        }
+
+        existing.filter { it.fileName.toString().endsWith(PARTIAL_SUFFIX) }
+            .forEach { Files.deleteIfExists(it) }
+
+        existing.filterNot { it.fileName.toString().endsWith(PARTIAL_SUFFIX) }
+            .sortedBy { Files.getLastModifiedTime(it) }
+            .forEach { add(it.fileName.toString(), Files.size(it)) }
+
+        log.info("Attachment cache holds {} files ({} MB)", entries.size, totalBytes / (1024 * 1024))
+        Metrics.gauge("octave_bot.attachments.cache_bytes") { size }
+    }
+
+    /**
+     * @return The cached copy of [url], or null if it isn't cached.
+     */
+    fun get(url: String): Path? {
+        val key = keyOf(url)
+        val cached = synchronized(entries) { entries[key] != null }
+
+        if (cached) {
+            val path = directory.resolve(key)
+
+            if (Files.exists(path)) {
+                hits.increment()
+                return path
+            }
+
+            remove(key)
+        }
+
+        misses.increment()
+        return null
+    }
+
+    /**
+     * Writes [url] to the cache with [download], unless a concurrent call already did so.
+     * Downloads go to a partial file of their own first, so a failed or concurrent download never leaves a
+     * truncated entry behind.
+     *
+     * @return The cached copy, or null if the download turned out larger than [maxFileBytes].
+     */
+    @Throws(IOException::class)
+    fun store(url: String, download: (OutputStream) -> Unit): Path? {
+        val key = keyOf(url)
+        val lock = downloads.computeIfAbsent(key) { Any() }
+
+        synchronized(lock) {
+            try {
+                val target = directory.resolve(key)
+
+                if (synchronized(entries) { entries[key] != null } && Files.exists(target)) {
+                    return target
+                }
+
+                // Unique per download: a caller that arrives once the lock has been dropped from the map can
+                // download the same key concurrently, and the atomic move below makes that harmless.
+                val partial = Files.createTempFile(directory, key, PARTIAL_SUFFIX)
+
+                try {
+                    Files.newOutputStream(partial).use(download)
+                } catch (e: IOException) {
+                    Files.deleteIfExists(partial)
+                    throw e
+                }
+
+                val length = Files.size(partial)
+
+                if (length > maxFileBytes) {
+                    Files.deleteIfExists(partial)
+                    return null
+                }
+
+                Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+                add(key, length)
+                downloaded.increment()
+                return target
+            } finally {
+                downloads.remove(key, lock)
+            }
+        }
+    }
+
+    private fun add(key: String, length: Long) {
+        val evicted = mutableListOf<String>()
+
+        synchronized(entries) {
+            entries.put(key, length)?.let { totalBytes -= it }
+            totalBytes += length
+
+            val iterator = entries.entries.iterator()
+
+            // Never evict the entry that was just added, even if it alone exceeds the limit.
+            while (totalBytes > maxBytes && entries.size > 1 && iterator.hasNext()) {
+                val eldest = iterator.next()
+                iterator.remove()
+                totalBytes -= eldest.value
+                evicted.add(eldest.key)
+            }
+        }
+
+        // Streams that are still reading an evicted file keep their mapping, so deleting is safe.
+        for (file in evicted) {
+            try {
+                Files.deleteIfExists(directory.resolve(file))
+                evictions.increment()
+            } catch (e: IOException) {
+                log.warn("Unable to delete evicted attachment {}", file, e)
+            }
+        }
+    }
+
+    private fun remove(key: String) {
+        synchronized(entries) {
+            entries.remove(key)?.let { totalBytes -= it }
+        }
+    }
+
+    companion object {
+        private val log = LoggerFactory.getLogger(AttachmentCache::class.java)
+        private const val PARTIAL_SUFFIX = ".part"
+
+        private val hits = Metrics.counter("octave_bot.attachments.cache", "outcome:hit")
+        private val misses = Metrics.counter("octave_bot.attachments.cache", "outcome:miss")
+        private val downloaded = Metrics.counter("octave_bot.attachments.cache", "outcome:download")
+        private val evictions = Metrics.counter("octave_bot.attachments.cache", "outcome:eviction")
+
+        fun keyOf(url: String): String {
+            val digest = MessageDigest.getInstance("SHA-1").digest(url.substringBefore('?').toByteArray())
+            return digest.joinToString("") { "%02x".format(it) }
+        }
+    }
+}
@@ -36,19 +36,23 @@ import com.sedmelluq.discord.lavaplayer.tools.io.HttpClientTools
 import com.sedmelluq.discord.lavaplayer.tools.io.HttpClientTools.NoRedirectsStrategy
 import com.sedmelluq.discord.lavaplayer.tools.io.HttpInterface
 import com.sedmelluq.discord.lavaplayer.tools.io.PersistentHttpStream
+import com.sedmelluq.discord.lavaplayer.tools.io.SeekableInputStream
 import com.sedmelluq.discord.lavaplayer.tools.io.ThreadLocalHttpInterfaceManager
 import com.sedmelluq.discord.lavaplayer.track.AudioItem
 import com.sedmelluq.discord.lavaplayer.track.AudioReference
 import com.sedmelluq.discord.lavaplayer.track.AudioTrack
 import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo
 import com.sedmelluq.discord.lavaplayer.track.info.AudioTrackInfoBuilder
+import gg.octave.bot.Launcher
 import gg.octave.bot.music.utils.LimitedContainerRegistry
 import org.apache.http.HttpResponse
 import org.apache.http.HttpStatus
+import org.slf4j.LoggerFactory
 import java.io.DataInput
 import java.io.DataOutput
 import java.io.IOException
 import java.net.URI
+import java.nio.file.Paths
 
 class DiscordAttachmentAudioSourceManager : ProbingAudioSourceManager(LimitedContainerRegistry()) {
     private val httpInterfaceManager = ThreadLocalHttpInterfaceManager(
@@ -60,6 +64,19 @@ class DiscordAttachmentAudioSourceManager : ProbingAudioSourceManager(LimitedCon
     internal val httpInterface: HttpInterface
         get() = httpInterfaceManager.`interface`
 
+    private val cache = Launcher.configuration.takeIf { it.attachmentCacheEnabled }?.let {
+        try {
+            AttachmentCache(
+                Paths.get(it.attachmentCacheDirectory),
+                it.attachmentCacheMaxSizeMb * 1024 * 1024,
+                it.attachmentCacheMaxFileMb * 1024 * 1024
+            )
+        } catch (e: IOException) {
+            log.warn("Attachment caching is disabled for this session (Unable to use the cache directory).", e)
+            null
+        }
+    }
+
     override fun getSourceName() = "attachment"
 
     override fun loadItem(manager: DefaultAudioPlayerManager, reference: AudioReference): AudioItem? {
@@ -86,7 +103,11 @@ class DiscordAttachmentAudioSourceManager : ProbingAudioSourceManager(LimitedCon
     private fun detectContainerWithClient(httpInterface: HttpInterface, reference: AudioReference): MediaContainerDetectionResult? {
         val uri = inlineTry("Not a valid URL.") { URI(reference.identifier) }
 
-        // We could probably scrape content-length from headers.
+        cache?.get(reference.identifier)?.let {
+            val hints = MediaContainerHints.from(null, uri.path.substringAfterLast('.'))
+            return MediaContainerDetection(containerRegistry, reference, MappedSeekableInputStream.open(it), hints).detectContainer()
+        }
+
         PersistentHttpStream(httpInterface, uri, Units.CONTENT_LENGTH_UNKNOWN).use { inputStream ->
             val statusCode = inputStream.checkStatusCode()
             if (statusCode == HttpStatus.SC_NOT_FOUND) {
@@ -95,8 +116,57 @@ class DiscordAttachmentAudioSourceManager : ProbingAudioSourceManager(LimitedCon
                 throw FriendlyException("That URL is not playable.", FriendlyException.Severity.COMMON, IllegalStateException("Status code $statusCode"))
             }
             val hints = MediaContainerHints.from(getHeaderValue(inputStream.currentResponse, "Content-Type"), null)
-            return MediaContainerDetection(containerRegistry, reference, inputStream, hints).detectContainer()
+            // Download the whole file now, so playback and seeking can read the local copy.
+            val source = cacheThrough(reference.identifier, inputStream)
+            return MediaContainerDetection(containerRegistry, reference, source, hints).detectContainer()
+        }
+    }
+
+    /**
+     * Opens the attachment for playback, from the cache if possible.
+     */
+    @Throws(IOException::class)
+    internal fun openStream(httpInterface: HttpInterface, identifier: String): SeekableInputStream {
+        cache?.get(identifier)?.let { return MappedSeekableInputStream.open(it) }
+
+        val inputStream = PersistentHttpStream(httpInterface, URI(identifier), Units.CONTENT_LENGTH_UNKNOWN)
+
+        if (cache == null || !HttpClientTools.isSuccessWithContent(inputStream.checkStatusCode())) {
+            return inputStream
         }
+
+        return cacheThrough(identifier, inputStream)
+    }
+
+    /**
+     * Copies [inputStream] into the cache and returns a stream over the cached copy. If the attachment is
+     * too large, its size is unknown or the download fails, [inputStream] itself is returned, rewound.
+     * The returned stream must be closed by the caller either way.
+     */
+    private fun cacheThrough(identifier: String, inputStream: PersistentHttpStream): SeekableInputStream {
+        val cache = cache
+            ?: return inputStream
+
+        val length = getHeaderValue(inputStream.currentResponse, "Content-Length")?.toLongOrNull()
+
+        if (length == null || length > cache.maxFileBytes) {
+            return inputStream
+        }
+
+        val path = try {
+            cache.store(identifier) { inputStream.copyTo(it) }
+        } catch (e: IOException) {
+            log.warn("Failed to cache attachment {}", identifier, e)
+            null
+        }
+
+        if (path == null) {
+            inputStream.seek(0)
+            return inputStream
+        }
+
+        inputStream.close()
+        return MappedSeekableInputStream.open(path)
     }
 
     private fun getHeaderValue(response: HttpResponse, name: String) = response.getFirstHeader(name)?.value
@@ -131,6 +201,7 @@ class DiscordAttachmentAudioSourceManager : ProbingAudioSourceManager(LimitedCon
     }
 
     companion object {
+        private val log = LoggerFactory.getLogger(DiscordAttachmentAudioSourceManager::class.java)
         private val cdnRegex = "^https?://cdn\\.discordapp\\.com/attachments/\\d{17,21}/\\d{17,21}/[a-zA-Z0-9_-]+\\.\\w{2,6}".toRegex()
     }
 }
@@ -0,0 +1,88 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.music.sources.attachment
+
+import com.sedmelluq.discord.lavaplayer.tools.io.SeekableInputStream
+import com.sedmelluq.discord.lavaplayer.track.info.AudioTrackInfoProvider
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+
+/**
+ * Reads a cached attachment through a memory mapping. Seeks only move the buffer position,
+ * so they cost nothing compared to a new range request.
+ */
+class MappedSeekableInputStream private constructor(
+    private val buffer: MappedByteBuffer
+) : SeekableInputStream(buffer.capacity().toLong(), 0) {
+    override fun read(): Int {
+        return if (buffer.hasRemaining()) buffer.get().toInt() and 0xFF else -1
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        if (len == 0) {
+            return 0
+        }
+
+        if (!buffer.hasRemaining()) {
+            return -1
+        }
+
+        val count = minOf(len, buffer.remaining())
+        buffer.get(b, off, count)
+        return count
+    }
+
+    override fun skip(n: Long): Long {
+        val count = n.coerceIn(0, buffer.remaining().toLong()).toInt()
+        buffer.position(buffer.position() + count)
+        return count.toLong()
+    }
+
+    override fun available() = buffer.remaining()
+
+    override fun getPosition() = buffer.position().toLong()
+
+    override fun seekHard(position: Long) {
+        buffer.position(position.coerceIn(0, contentLength).toInt())
+    }
+
+    override fun canSeekHard() = true
+
+    override fun getTrackInfoProviders() = emptyList<AudioTrackInfoProvider>()
+
+    companion object {
+        /**
+         * Maps [path] into memory. The channel is closed straight away, the mapping stays valid
+         * until the stream is garbage collected.
+         */
+        fun open(path: Path): MappedSeekableInputStream {
+            return FileChannel.open(path, StandardOpenOption.READ).use {
+                MappedSeekableInputStream(it.map(FileChannel.MapMode.READ_ONLY, 0, it.size()))
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.music.sources.caching
+
+import com.sedmelluq.discord.lavaplayer.player.FunctionalResultHandler
+import gg.octave.bot.Launcher
+import gg.octave.bot.metrics.Metrics
+import org.slf4j.LoggerFactory
+import redis.clients.jedis.exceptions.JedisException
+import redis.clients.jedis.params.SetParams
+import java.time.LocalDate
+import java.time.ZoneOffset
+import java.time.format.DateTimeFormatter
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Pre-resolves the most played identifiers into the track cache after a deploy, so the first minutes
+ * after startup don't send every load to the source.
+ *
+ * Loads are counted per day in Redis sorted sets (`popular-identifiers:<date>`, kept for a week), and
+ * the warm-up resolves the top identifiers of the last [DAYS] days, one at a time at a fixed rate.
+ */
+object CacheWarmer {
+    private val log = LoggerFactory.getLogger(CacheWarmer::class.java)
+    private val config = Launcher.configuration
+
+    private const val KEY_PREFIX = "popular-identifiers:"
+    private const val LOCK_KEY = "cache-warmup-lock"
+    private const val DAYS = 3
+    private val KEY_TTL = TimeUnit.DAYS.toSeconds(7).toInt()
+    private val LOCK_TTL = TimeUnit.MINUTES.toMillis(30)
+    private val LOAD_TIMEOUT = TimeUnit.SECONDS.toMillis(15)
+    private val DATE_FORMAT = DateTimeFormatter.BASIC_ISO_DATE
+
+    @Volatile
+    private var worker: Thread? = null
+    @Volatile
+    private var cancelled = false
+    private val startedAutomatically = AtomicBoolean()
+
+    @Volatile
+    var progress = Progress(0, 0, 0, 0, 0)
+        private set
+
+    val isRunning: Boolean
+        get() = worker?.isAlive == true
+
+    /**
+     * Counts a successful load of [identifier] towards its popularity.
+     */
+    fun recordLoad(identifier: String) {
+        val key = KEY_PREFIX + LocalDate.now(ZoneOffset.UTC).format(DATE_FORMAT)
+
+        try {
+            Launcher.database.redis {
+                it.pipelined().apply {
+                    zincrby(key, 1.0, identifier)
+                    expire(key, KEY_TTL)
+                }.sync()
+            }
+        } catch (e: JedisException) {
+            log.debug("Unable to record the load of {}", identifier, e)
+        }
+    }
+
+    /**
+     * Starts the warm-up the first time every shard is ready, if no other node has done so recently.
+     */
+    fun startAutomatically() {
+        if (!config.warmupEnabled || !startedAutomatically.compareAndSet(false, true)) {
+            return
+        }
+
+        val locked = try {
+            Launcher.database.redis { it.set(LOCK_KEY, config.nodeNumber.toString(), SetParams.setParams().nx().px(LOCK_TTL)) } != null
+        } catch (e: JedisException) {
+            false
+        }
+
+        if (!locked) {
+            return log.info("Skipping the cache warm-up, another node has run it recently.")
+        }
+
+        start(config.warmupSize)
+    }
+
+    /**
+     * Starts warming the top [size] identifiers.
+     * @return False if a warm-up is already running.
+     */
+    @Synchronized
+    fun start(size: Int): Boolean {
+        if (isRunning) {
+            return false
+        }
+
+        cancelled = false
+        worker = Thread({ run(size) }, "Cache-Warmer").apply {
+            isDaemon = true
+            start()
+        }
+
+        return true
+    }
+
+    fun cancel() {
+        cancelled = true
+        worker?.interrupt()
+    }
+
+    private fun run(size: Int) {
+        val identifiers = try {
+            topIdentifiers(size)
+        } catch (e: JedisException) {
+            return log.warn("Unable to read the popular identifiers, skipping the cache warm-up", e)
+        }
+
+        val interval = (1000 / config.warmupRate.coerceAtLeast(0.1)).toLong()
+        var warmed = 0
+        var skipped = 0
+        var failed = 0
+
+        log.info("Warming the track cache with {} identifiers ({}/s)", identifiers.size, config.warmupRate)
+
+        for ((index, identifier) in identifiers.withIndex()) {
+            if (cancelled) {
+                log.info("Cache warm-up cancelled after {} of {} identifiers.", index, identifiers.size)
+                return
+            }
+
+            when {
+                CachingSourceManager.contains(identifier) -> skipped++
+                warm(identifier) -> warmed++
+                else -> failed++
+            }
+
+            progress = Progress(index + 1, identifiers.size, warmed, skipped, failed)
+
+            if ((index + 1) % 50 == 0) {
+                log.info("Cache warm-up: {}/{} ({} warmed, {} already cached, {} failed)",
+                    index + 1, identifiers.size, warmed, skipped, failed)
+            }
+
+            try {
+                Thread.sleep(interval)
+            } catch (e: InterruptedException) {
+                // Cancelled, checked at the top of the loop.
+            }
+        }
+
+        Metrics.counter("octave_bot.cache.warmed").add(warmed.toLong())
+        log.info("Cache warm-up finished: {} warmed, {} already cached, {} failed.", warmed, skipped, failed)
+    }
+
+    private fun topIdentifiers(size: Int): List<String> {
+        val today = LocalDate.now(ZoneOffset.UTC)
+        val keys = (0 until DAYS).map { KEY_PREFIX + today.minusDays(it.toLong()).format(DATE_FORMAT) }
+        val union = "$KEY_PREFIX${today.format(DATE_FORMAT)}:warmup"
+
+        return Launcher.database.redis {
+            it.zunionstore(union, *keys.toTypedArray())
+            val top = it.zrevrange(union, 0, size - 1L).toList()
+            it.del(union)
+            top
+        }
+    }
+
+    private fun warm(identifier: String): Boolean {
+        val future = CompletableFuture<Boolean>()
+
+        Launcher.players.playerManager.loadItem(identifier, FunctionalResultHandler(
+            { CachingSourceManager.cache(identifier, it); future.complete(true) },
+            { CachingSourceManager.cache(identifier, it); future.complete(true) },
+            { future.complete(false) },
+            { future.complete(false) }
+        ))
+
+        return try {
+            future.get(LOAD_TIMEOUT, TimeUnit.MILLISECONDS)
+        } catch (e: TimeoutException) {
+            false
+        } catch (e: InterruptedException) {
+            false
+        }
+    }
+
+    class Progress(val done: Int, val total: Int, val warmed: Int, val skipped: Int, val failed: Int)
+}
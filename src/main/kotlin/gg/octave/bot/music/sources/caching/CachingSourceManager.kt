@@ -26,8 +26,12 @@ package gg.octave.bot.music.sources.caching
 
 import com.sedmelluq.discord.lavaplayer.player.DefaultAudioPlayerManager
 import com.sedmelluq.discord.lavaplayer.source.AudioSourceManager
+import com.sedmelluq.discord.lavaplayer.tools.FriendlyException
 import com.sedmelluq.discord.lavaplayer.track.*
 import gg.octave.bot.Launcher
+import gg.octave.bot.metrics.Metrics
+import gg.octave.bot.music.utils.LoadReference
+import gg.octave.bot.music.utils.LpErrorTranslator
 import org.slf4j.LoggerFactory
 import redis.clients.jedis.JedisPool
 import redis.clients.jedis.JedisPoolConfig
@@ -36,6 +40,7 @@ import redis.clients.jedis.exceptions.JedisConnectionException
 import redis.clients.jedis.params.SetParams
 import java.io.DataInput
 import java.io.DataOutput
+import java.io.IOException
 import java.util.concurrent.TimeUnit
 
 class CachingSourceManager : AudioSourceManager {
@@ -68,13 +73,23 @@ class CachingSourceManager : AudioSourceManager {
             return null
         }
 
-        totalHits++
+        lookups.increment()
+        val identifier = reference.identifier
+        val bypassNegative = (reference as? LoadReference)?.bypassNegative ?: false
 
         jedisPool.resource.use {
-            val encoded = it.get(reference.identifier)
-                ?: return null
+            val (encoded, negative) = Metrics.time(REDIS_LATENCY, "op:get") { it.mget(identifier, NEGATIVE_PREFIX + identifier) }
 
-            successfulHits++
+            if (encoded == null) {
+                if (negative != null && !bypassNegative) {
+                    negativeHits.increment()
+                    throw CachedLoadFailure(negative.takeIf { it != NO_MATCHES })
+                }
+
+                return null
+            }
+
+            hits.increment()
 
             if (encoded.startsWith('{')) { // JSON object representing a playlist.
                 return Launcher.players.playerManager.decodePlaylist(encoded)
@@ -95,10 +110,11 @@ class CachingSourceManager : AudioSourceManager {
             private set
 
         // Metrics
-        var totalHits = 0
-            private set
-        var successfulHits = 0
-            private set
+        private val lookups = Metrics.counter("octave_bot.cache.lookups")
+        private val hits = Metrics.counter("octave_bot.cache.hits")
+        private val negativeHits = Metrics.counter("octave_bot.cache.negative_hits")
+        private val negativeWrites = Metrics.counter("octave_bot.cache.negative_writes")
+        private const val REDIS_LATENCY = "octave_bot.cache.latency"
 
         private val creds = Launcher.credentials
         private val redisHost = creds.redisHost
@@ -110,6 +126,23 @@ class CachingSourceManager : AudioSourceManager {
         private val SEARCH_TTL = TimeUnit.HOURS.toMillis(12)
         private val TRACK_TTL = TimeUnit.HOURS.toMillis(12)
 
+        // Negative results are kept briefly, since videos get uploaded and unblocked all the time.
+        private const val NEGATIVE_PREFIX = "negative:"
+        private const val NO_MATCHES = "<no matches>"
+        private val NO_MATCHES_TTL = TimeUnit.MINUTES.toMillis(5)
+        private val FAILURE_TTL = TimeUnit.MINUTES.toMillis(15)
+
+        /**
+         * @return Whether a positive result is cached for [identifier].
+         */
+        fun contains(identifier: String): Boolean {
+            if (jedisPool.isClosed) {
+                return false
+            }
+
+            return jedisPool.resource.use { it.exists(identifier) }
+        }
+
         fun cache(identifier: String, item: AudioItem) {
             if (jedisPool.isClosed) {
                 return
@@ -119,16 +152,58 @@ class CachingSourceManager : AudioSourceManager {
                 jedisPool.resource.use {
                     val encoded = Launcher.players.playerManager.encodeAudioTrack(item)
                     val setParams = SetParams.setParams().nx().px(TRACK_TTL)
-                    it.set(identifier, encoded, setParams)
+                    Metrics.time(REDIS_LATENCY, "op:set") { it.set(identifier, encoded, setParams) }
                 }
             } else if (item is AudioPlaylist) {
                 jedisPool.resource.use {
                     val ttl = if (item.isSearchResult) SEARCH_TTL else PLAYLIST_TTL
                     val encoded = Launcher.players.playerManager.toJsonString(item)
                     val setParams = SetParams.setParams().nx().px(ttl)
-                    it.set(identifier, encoded, setParams)
+                    Metrics.time(REDIS_LATENCY, "op:set") { it.set(identifier, encoded, setParams) }
                 }
             }
         }
+
+        /**
+         * Remembers that [identifier] found nothing. Only the final outcome should be cached,
+         * i.e. after [LoadResultHandler][gg.octave.bot.music.LoadResultHandler] has retried.
+         */
+        fun cacheNoMatches(identifier: String) = cacheNegative(identifier, NO_MATCHES, NO_MATCHES_TTL)
+
+        /**
+         * Remembers that [identifier] failed to load, if the failure is one that retrying won't fix.
+         * @return Whether the failure was cached.
+         */
+        fun cacheFailure(identifier: String, exception: FriendlyException): Boolean {
+            if (exception is CachedLoadFailure || !isPermanent(exception)) {
+                return false
+            }
+
+            cacheNegative(identifier, LpErrorTranslator.translate(exception), FAILURE_TTL)
+            return true
+        }
+
+        /**
+         * Failures with [FriendlyException.Severity.COMMON] are the source telling us the item is unavailable
+         * (private, removed, region locked and so on). Anything caused by I/O is a network hiccup and
+         * may well work on the next attempt, so it's never cached.
+         */
+        fun isPermanent(exception: FriendlyException): Boolean {
+            return exception.severity == FriendlyException.Severity.COMMON
+                && generateSequence(exception.cause) { it.cause }.none { it is IOException }
+        }
+
+        private fun cacheNegative(identifier: String, value: String, ttl: Long) {
+            if (jedisPool.isClosed) {
+                return
+            }
+
+            jedisPool.resource.use {
+                val setParams = SetParams.setParams().px(ttl)
+                Metrics.time(REDIS_LATENCY, "op:set_negative") { it.set(NEGATIVE_PREFIX + identifier, value, setParams) }
+            }
+
+            negativeWrites.increment()
+        }
     }
 }
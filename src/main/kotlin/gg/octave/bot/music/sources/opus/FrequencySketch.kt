@@ -0,0 +1,90 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.music.sources.opus
+
+/**
+ * Approximate access counts for TinyLFU admission: a count-min sketch of 4-bit counters that
+ * are halved every time [sampleSize] increments have been recorded, so old popularity fades out.
+ */
+class FrequencySketch(capacity: Int) {
+    private val width = Integer.highestOneBit(maxOf(capacity, 16) * 2)
+    private val table = Array(DEPTH) { ByteArray(width) }
+    private val sampleSize = capacity * 10
+    private var additions = 0
+
+    @Synchronized
+    fun increment(key: String) {
+        val hash = spread(key.hashCode())
+        var added = false
+
+        for (row in 0 until DEPTH) {
+            val index = indexOf(hash, row)
+
+            if (table[row][index] < MAX_COUNT) {
+                table[row][index]++
+                added = true
+            }
+        }
+
+        if (added && ++additions >= sampleSize) {
+            reset()
+        }
+    }
+
+    @Synchronized
+    fun frequency(key: String): Int {
+        val hash = spread(key.hashCode())
+        return (0 until DEPTH).map { table[it][indexOf(hash, it)].toInt() }.min() ?: 0
+    }
+
+    private fun reset() {
+        for (row in table) {
+            for (i in row.indices) {
+                row[i] = (row[i].toInt() shr 1).toByte()
+            }
+        }
+
+        additions /= 2
+    }
+
+    private fun indexOf(hash: Int, row: Int): Int {
+        var h = (hash.toLong() + SEEDS[row]) * SEEDS[row]
+        h += h ushr 32
+        return h.toInt() and (width - 1)
+    }
+
+    private fun spread(hash: Int): Int {
+        var h = hash
+        h = ((h ushr 16) xor h) * 0x45d9f3b
+        h = ((h ushr 16) xor h) * 0x45d9f3b
+        return (h ushr 16) xor h
+    }
+
+    companion object {
+        private const val DEPTH = 4
+        private const val MAX_COUNT: Byte = 15
+        private val SEEDS = longArrayOf(-0x3c3ba6d4a5f5c6a5L, -0x4b47d5b1a18fcc4dL, -0x6b2fb644ecceee15L, 0x4cf5ad432745937fL)
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.music.sources.opus
+
+import com.sedmelluq.discord.lavaplayer.player.DefaultAudioPlayerManager
+import com.sedmelluq.discord.lavaplayer.source.AudioSourceManager
+import com.sedmelluq.discord.lavaplayer.track.AudioItem
+import com.sedmelluq.discord.lavaplayer.track.AudioReference
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo
+import gg.octave.bot.music.sources.routing.IdentifierRouter
+import org.slf4j.LoggerFactory
+import java.io.ByteArrayInputStream
+import java.io.DataInput
+import java.io.DataInputStream
+import java.io.DataOutput
+import java.io.IOException
+
+/**
+ * Serves tracks from the [OpusFrameStore], so popular tracks never touch the remote source.
+ * The router consults it before anything else.
+ *
+ * Stored frames only exist on this node, so these tracks are never encoded as their own. They're encoded
+ * as a track of their original source, and swapped back for stored frames when decoded here.
+ *
+ * @param sources Looks up registered source managers by name.
+ */
+class OpusCacheSourceManager(private val sources: (String) -> AudioSourceManager?) : AudioSourceManager {
+    override fun getSourceName() = "opus-cache"
+
+    override fun loadItem(manager: DefaultAudioPlayerManager, reference: AudioReference): AudioItem? {
+        // Only URLs are ever stored, searches and the like would just dilute the hit rate.
+        val identifier = reference.identifier
+        if (!identifier.startsWith("https://") && !identifier.startsWith("http://")) {
+            return null
+        }
+
+        val path = OpusFrameStore.lookup(identifier)
+            ?: return null
+
+        return try {
+            OpusCachedAudioTrack(OpusFrameFile.readInfo(path), this)
+        } catch (e: IOException) {
+            log.warn("Unable to read stored Opus frames of {}", reference.identifier, e)
+            null
+        }
+    }
+
+    /**
+     * Rebuilds [track] as a track of the source it was recorded from, without loading anything. This works for
+     * the sources whose tracks are described by their info alone, like YouTube and SoundCloud.
+     * @return The original track, at the same position, or null if its source needs more than the info.
+     */
+    fun decodeOriginal(track: OpusCachedAudioTrack): AudioTrack? {
+        val source = IdentifierRouter.classify(track.info.uri)?.source?.let(sources)
+            ?: return null
+
+        val original = try {
+            source.decodeTrack(track.info, DataInputStream(ByteArrayInputStream(ByteArray(0))))
+        } catch (e: IOException) {
+            null // Reads something beyond the info, e.g. a container descriptor.
+        } ?: return null
+
+        original.position = track.position
+        return original
+    }
+
+    /**
+     * @return A track playing stored frames in place of [track], if this node has them.
+     */
+    fun preferStored(track: AudioTrack): AudioTrack? {
+        if (track is OpusCachedAudioTrack || track.info.uri == null || OpusFrameStore.find(track.info.uri) == null) {
+            return null
+        }
+
+        return OpusCachedAudioTrack(track.info, this).also { it.position = track.position }
+    }
+
+    // Only reached when the original source can't rebuild the track, see decodeOriginal. Other nodes will
+    // fall back to loading the URI.
+    override fun isTrackEncodable(track: AudioTrack) = true
+
+    override fun encodeTrack(track: AudioTrack, output: DataOutput) {
+
+    }
+
+    override fun decodeTrack(trackInfo: AudioTrackInfo, input: DataInput): AudioTrack {
+        return OpusCachedAudioTrack(trackInfo, this)
+    }
+
+    override fun shutdown() {
+
+    }
+
+    companion object {
+        private val log = LoggerFactory.getLogger(OpusCacheSourceManager::class.java)
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.music.sources.opus
+
+import com.sedmelluq.discord.lavaplayer.container.common.OpusPacketRouter
+import com.sedmelluq.discord.lavaplayer.player.FunctionalResultHandler
+import com.sedmelluq.discord.lavaplayer.tools.FriendlyException
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo
+import com.sedmelluq.discord.lavaplayer.track.DelegatedAudioTrack
+import com.sedmelluq.discord.lavaplayer.track.InternalAudioTrack
+import com.sedmelluq.discord.lavaplayer.track.playback.LocalAudioTrackExecutor
+import gg.octave.bot.Launcher
+import java.io.IOException
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+
+class OpusCachedAudioTrack(
+    trackInfo: AudioTrackInfo,
+    private val sourceManager: OpusCacheSourceManager
+) : DelegatedAudioTrack(trackInfo) {
+    override fun getSourceManager() = sourceManager
+    override fun makeShallowClone() = OpusCachedAudioTrack(trackInfo, sourceManager)
+
+    override fun process(executor: LocalAudioTrackExecutor) {
+        val frames = OpusFrameStore.find(trackInfo.uri)?.let {
+            try {
+                OpusFrameFile.open(it)
+            } catch (e: IOException) {
+                null
+            }
+        }
+
+        if (frames == null) {
+            // Evicted since the track was loaded, play it from its original source instead.
+            val original = sourceManager.decodeOriginal(this) ?: loadOriginal()
+            return processDelegate(original as InternalAudioTrack, executor)
+        }
+
+        // Passes the frames through untouched, unless volume or filters require decoding them.
+        val router = OpusPacketRouter(executor.processingContext, SAMPLE_RATE, CHANNELS)
+
+        try {
+            executor.executeProcessingLoop({
+                var frame = frames.next()
+
+                while (frame != null) {
+                    router.process(frame)
+                    frame = frames.next()
+                }
+            }, { position ->
+                frames.seek(position)
+                router.seekPerformed(position, frames.position)
+            })
+        } finally {
+            router.close()
+        }
+    }
+
+    // Only for sources that can't be rebuilt from the track info, this blocks the playback thread.
+    private fun loadOriginal(): AudioTrack {
+        val future = CompletableFuture<AudioTrack>()
+
+        Launcher.players.playerManager.loadItem(trackInfo.uri, FunctionalResultHandler(
+            { future.complete(it) },
+            { future.complete(it.tracks.firstOrNull()) },
+            { future.completeExceptionally(FriendlyException("This track is no longer available.", FriendlyException.Severity.COMMON, null)) },
+            { future.completeExceptionally(it) }
+        ))
+
+        // A corrupt file would be served again, don't go round in circles.
+        return future.get(30, TimeUnit.SECONDS)?.takeUnless { it is OpusCachedAudioTrack }
+            ?: throw FriendlyException("This track is no longer available.", FriendlyException.Severity.COMMON, null)
+    }
+
+    companion object {
+        private const val SAMPLE_RATE = 48000
+        private const val CHANNELS = 2
+    }
+}
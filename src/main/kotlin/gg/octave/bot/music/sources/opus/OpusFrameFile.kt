@@ -0,0 +1,136 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.music.sources.opus
+
+import com.sedmelluq.discord.lavaplayer.tools.io.ByteBufferInputStream
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo
+import java.io.BufferedInputStream
+import java.io.DataInput
+import java.io.DataInputStream
+import java.io.DataOutput
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+
+/**
+ * A track stored as 20ms Opus frames. The file starts with the track info, followed by the frame count
+ * and the frames themselves, each prefixed with its length as an unsigned short.
+ *
+ * Files are memory-mapped, so every player reading the same track shares the same page cache pages.
+ */
+class OpusFrameFile private constructor(private val buffer: ByteBuffer, val info: AudioTrackInfo) {
+    private val offsets: IntArray
+    private var frame = 0
+
+    init {
+        val count = buffer.int
+        offsets = IntArray(count)
+
+        for (i in 0 until count) {
+            offsets[i] = buffer.position()
+            buffer.position(buffer.position() + 2 + (buffer.short.toInt() and 0xFFFF))
+        }
+    }
+
+    /**
+     * The timecode of the next frame, in milliseconds.
+     */
+    val position: Long
+        get() = frame * FRAME_DURATION
+
+    /**
+     * @return The next frame, or null at the end of the track. The buffer is only valid until the next call.
+     */
+    fun next(): ByteBuffer? {
+        if (frame >= offsets.size) {
+            return null
+        }
+
+        val offset = offsets[frame++]
+        val length = buffer.getShort(offset).toInt() and 0xFFFF
+        val slice = buffer.duplicate()
+        slice.limit(offset + 2 + length)
+        slice.position(offset + 2)
+        return slice
+    }
+
+    fun seek(position: Long) {
+        frame = (position / FRAME_DURATION).toInt().coerceIn(0, offsets.size)
+    }
+
+    companion object {
+        private const val MAGIC = 0x4F504643 // OPFC
+        private const val VERSION = 1
+        const val FRAME_DURATION = 20L
+
+        @Throws(IOException::class)
+        fun open(path: Path): OpusFrameFile {
+            val buffer = FileChannel.open(path, StandardOpenOption.READ).use {
+                it.map(FileChannel.MapMode.READ_ONLY, 0, it.size())
+            }
+
+            val info = readHeader(DataInputStream(ByteBufferInputStream(buffer)))
+            return OpusFrameFile(buffer, info)
+        }
+
+        /**
+         * Reads only the track info, without mapping the file.
+         */
+        @Throws(IOException::class)
+        fun readInfo(path: Path): AudioTrackInfo {
+            return DataInputStream(BufferedInputStream(Files.newInputStream(path))).use(::readHeader)
+        }
+
+        fun writeHeader(info: AudioTrackInfo, frameCount: Int, output: DataOutput) {
+            output.writeInt(MAGIC)
+            output.writeByte(VERSION)
+            output.writeUTF(info.title)
+            output.writeUTF(info.author)
+            output.writeLong(info.length)
+            output.writeUTF(info.identifier)
+            output.writeUTF(info.uri)
+            output.writeInt(frameCount)
+        }
+
+        /**
+         * Reads everything up to, but not including, the frame count.
+         */
+        private fun readHeader(input: DataInput): AudioTrackInfo {
+            if (input.readInt() != MAGIC || input.readUnsignedByte() != VERSION) {
+                throw IOException("Not an Opus frame file")
+            }
+
+            val title = input.readUTF()
+            val author = input.readUTF()
+            val length = input.readLong()
+            val identifier = input.readUTF()
+            val uri = input.readUTF()
+            return AudioTrackInfo(title, author, length, identifier, false, uri)
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.music.sources.opus
+
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack
+import gg.octave.bot.Launcher
+import gg.octave.bot.metrics.Metrics
+import org.slf4j.LoggerFactory
+import java.io.BufferedOutputStream
+import java.io.DataOutputStream
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
+import java.util.concurrent.Executors
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.stream.Collectors
+
+/**
+ * Disk store of pre-encoded Opus frames for the most played tracks, keyed by track URI.
+ *
+ * Tracks are recorded from the frames players already send, so nothing is encoded twice. Whether a
+ * track is worth recording is decided by TinyLFU: its play frequency has to beat the frequency of the
+ * least recently used track that would be evicted to make room for it. The store never grows past
+ * its disk quota.
+ */
+object OpusFrameStore {
+    private val log = LoggerFactory.getLogger(OpusFrameStore::class.java)
+    private val config = Launcher.configuration
+
+    @JvmField
+    val enabled = config.opusCacheEnabled
+
+    private val directory: Path = Paths.get(config.opusCacheDirectory)
+    private val maxBytes = config.opusCacheMaxSizeMb * 1024 * 1024
+    private val maxRecordings = config.opusCacheMaxRecordings
+
+    // Access-ordered, so iteration starts at the least recently used entry. Guarded by itself.
+    private val entries = LinkedHashMap<String, Long>(16, 0.75f, true)
+    private var totalBytes = 0L
+    private val sketch = FrequencySketch(10_000)
+    private val activeRecordings = AtomicInteger()
+    private val writer = Executors.newSingleThreadExecutor { Thread(it, "Opus-Store-Writer").apply { isDaemon = true } }
+
+    // Metrics
+    private val hits = Metrics.counter("octave_bot.opus_cache.lookups", "outcome:hit")
+    private val misses = Metrics.counter("octave_bot.opus_cache.lookups", "outcome:miss")
+    private val admitted = Metrics.counter("octave_bot.opus_cache.admissions", "outcome:admitted")
+    private val rejected = Metrics.counter("octave_bot.opus_cache.admissions", "outcome:rejected")
+    private val stored = Metrics.counter("octave_bot.opus_cache.recordings", "outcome:stored")
+    private val discarded = Metrics.counter("octave_bot.opus_cache.recordings", "outcome:discarded")
+    private val evictions = Metrics.counter("octave_bot.opus_cache.evictions")
+
+    private const val PARTIAL_SUFFIX = ".part"
+    // Only tracks that were played at least this often are considered, even while there's room left.
+    private const val MIN_FREQUENCY = 2
+    // Rough size of a track, used to decide whether it fits before it has been recorded.
+    private const val BYTES_PER_SECOND = 8 * 1024
+
+    val size: Long
+        get() = synchronized(entries) { totalBytes }
+
+    val count: Int
+        get() = synchronized(entries) { entries.size }
+
+    init {
+        if (enabled) {
+            try {
+                loadIndex()
+            } catch (e: IOException) {
+                log.error("Unable to read the Opus store at {}", directory, e)
+            }
+
+            Metrics.gauge("octave_bot.opus_cache.bytes") { size }
+            Metrics.gauge("octave_bot.opus_cache.tracks") { count }
+        }
+    }
+
+    private fun loadIndex() {
+        Files.createDirectories(directory)
+
+        val files = Files.list(directory).use { it.filter(Files::isRegularFile).collect(Collectors.toList()) }
+
+        for (file in files.sortedBy { Files.getLastModifiedTime(it) }) {
+            val name = file.fileName.toString()
+
+            if (name.endsWith(PARTIAL_SUFFIX)) {
+                Files.deleteIfExists(file)
+            } else {
+                synchronized(entries) {
+                    entries[name] = Files.size(file)
+                    totalBytes += Files.size(file)
+                }
+            }
+        }
+
+        log.info("Opus store holds {} tracks ({} MB)", count, size / (1024 * 1024))
+    }
+
+    /**
+     * Looks up [uri] for a load, counting a hit or miss. Anything else should use [find].
+     * @return The frame file for [uri], or null if it isn't stored.
+     */
+    fun lookup(uri: String): Path? {
+        if (!enabled) {
+            return null
+        }
+
+        val path = find(uri)
+        (if (path == null) misses else hits).increment()
+        return path
+    }
+
+    /**
+     * @return The frame file for [uri], or null if it isn't stored. Doesn't count towards the hit rate.
+     */
+    fun find(uri: String): Path? {
+        if (!enabled) {
+            return null
+        }
+
+        val key = keyOf(uri)
+        val present = synchronized(entries) { entries[key] != null }
+        return directory.resolve(key).takeIf { present && Files.exists(it) }
+    }
+
+    /**
+     * Counts a play of [track] towards its popularity, and starts recording it if it should be admitted.
+     * @return The recording to feed frames into, or null.
+     */
+    fun startRecording(track: AudioTrack): OpusRecording? {
+        if (!enabled || track is OpusCachedAudioTrack || track.info.isStream || track.info.uri == null) {
+            return null
+        }
+
+        val key = keyOf(track.info.uri)
+        sketch.increment(key)
+
+        if (!admits(key, track.duration / 1000 * BYTES_PER_SECOND)) {
+            return null
+        }
+
+        if (activeRecordings.incrementAndGet() > maxRecordings) {
+            activeRecordings.decrementAndGet()
+            return null
+        }
+
+        admitted.increment()
+        return OpusRecording(key, track)
+    }
+
+    private fun admits(key: String, estimatedSize: Long): Boolean {
+        val frequency = sketch.frequency(key)
+
+        if (frequency < MIN_FREQUENCY) {
+            return false
+        }
+
+        val admit = synchronized(entries) {
+            when {
+                entries.containsKey(key) -> return false
+                estimatedSize > maxBytes -> false
+                totalBytes + estimatedSize <= maxBytes -> true
+                else -> frequency > sketch.frequency(entries.keys.first())
+            }
+        }
+
+        if (!admit) {
+            rejected.increment()
+        }
+
+        return admit
+    }
+
+    /**
+     * Ends a recording. If the track [completed] and every frame was usable, it's written to disk in the background.
+     */
+    fun finishRecording(recording: OpusRecording, completed: Boolean) {
+        activeRecordings.decrementAndGet()
+
+        val frames = recording.takeFrames()?.takeIf { completed }
+
+        if (frames == null) {
+            discarded.increment()
+            return
+        }
+
+        try {
+            writer.execute { write(recording, frames) }
+        } catch (e: RejectedExecutionException) {
+            discarded.increment()
+        }
+    }
+
+    private fun write(recording: OpusRecording, frames: ByteArray) {
+        val key = recording.key
+        val partial = directory.resolve(key + PARTIAL_SUFFIX)
+
+        try {
+            DataOutputStream(BufferedOutputStream(Files.newOutputStream(partial))).use {
+                OpusFrameFile.writeHeader(recording.track.info, recording.frameCount, it)
+                it.write(frames)
+            }
+
+            Files.move(partial, directory.resolve(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        } catch (e: IOException) {
+            log.warn("Failed to store Opus frames of {}", recording.track.info.uri, e)
+            partial.toFile().delete()
+            discarded.increment()
+            return
+        }
+
+        stored.increment()
+        add(key, Files.size(directory.resolve(key)))
+    }
+
+    private fun add(key: String, length: Long) {
+        val evicted = mutableListOf<String>()
+
+        synchronized(entries) {
+            entries.put(key, length)?.let { totalBytes -= it }
+            totalBytes += length
+
+            val iterator = entries.entries.iterator()
+
+            while (totalBytes > maxBytes && entries.size > 1 && iterator.hasNext()) {
+                val eldest = iterator.next()
+
+                if (eldest.key != key) {
+                    iterator.remove()
+                    totalBytes -= eldest.value
+                    evicted.add(eldest.key)
+                }
+            }
+        }
+
+        // Players still reading an evicted file keep their mapping, so deleting is safe.
+        for (file in evicted) {
+            try {
+                Files.deleteIfExists(directory.resolve(file))
+                evictions.increment()
+            } catch (e: IOException) {
+                log.warn("Unable to delete evicted Opus file {}", file, e)
+            }
+        }
+    }
+
+    private fun keyOf(uri: String): String {
+        val digest = MessageDigest.getInstance("SHA-1").digest(uri.toByteArray())
+        return digest.joinToString("") { "%02x".format(it) }
+    }
+}
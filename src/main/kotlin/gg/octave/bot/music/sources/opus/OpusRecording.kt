@@ -0,0 +1,130 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.music.sources.opus
+
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack
+import com.sedmelluq.discord.lavaplayer.track.playback.MutableAudioFrame
+
+/**
+ * Collects the Opus frames a player sends for one track, so they can be written to the [OpusFrameStore]
+ * once the track has played to the end.
+ *
+ * Frames are only usable if the track played from the start without seeking, and nothing altered the
+ * audio on the way (volume or filters). The recording aborts as soon as either stops being true,
+ * releasing what was buffered.
+ */
+class OpusRecording internal constructor(val key: String, val track: AudioTrack) {
+    // Frames go into fixed-size chunks, so appending on the send thread never copies what's already recorded.
+    @Volatile
+    private var chunks: MutableList<ByteArray>? = mutableListOf(ByteArray(CHUNK_SIZE))
+    private var chunkPosition = 0
+    private var size = 0
+    private val scratch = ByteArray(MAX_FRAME_SIZE)
+    private var lastTimecode = -1L
+
+    var frameCount = 0
+        private set
+
+    val isAborted: Boolean
+        get() = chunks == null
+
+    /**
+     * Called from the audio send thread for every frame provided while this track is playing.
+     * @param unaltered Whether the frame is exactly what the track produced.
+     */
+    fun append(frame: MutableAudioFrame, unaltered: Boolean) {
+        val chunks = chunks
+            ?: return
+
+        val timecode = frame.timecode
+        val contiguous = if (lastTimecode == -1L) timecode < OpusFrameFile.FRAME_DURATION * 5 else timecode - lastTimecode == OpusFrameFile.FRAME_DURATION
+        val length = frame.dataLength
+
+        if (!unaltered || !contiguous || length > MAX_FRAME_SIZE || size + length + 2 > MAX_RECORDING_SIZE) {
+            return abort()
+        }
+
+        lastTimecode = timecode
+        scratch[0] = (length shr 8).toByte()
+        scratch[1] = length.toByte()
+        write(chunks, scratch, 2)
+        frame.getData(scratch, 0)
+        write(chunks, scratch, length)
+        frameCount++
+    }
+
+    private fun write(chunks: MutableList<ByteArray>, bytes: ByteArray, length: Int) {
+        var offset = 0
+
+        while (offset < length) {
+            if (chunkPosition == CHUNK_SIZE) {
+                chunks.add(ByteArray(CHUNK_SIZE))
+                chunkPosition = 0
+            }
+
+            val count = minOf(length - offset, CHUNK_SIZE - chunkPosition)
+            System.arraycopy(bytes, offset, chunks.last(), chunkPosition, count)
+            chunkPosition += count
+            offset += count
+        }
+
+        size += length
+    }
+
+    fun abort() {
+        chunks = null
+    }
+
+    /**
+     * @return The recorded frames, or null if the recording was aborted or doesn't cover the whole track.
+     */
+    internal fun takeFrames(): ByteArray? {
+        val chunks = chunks
+            ?: return null
+
+        this.chunks = null
+        val recorded = frameCount * OpusFrameFile.FRAME_DURATION
+
+        if (recorded < track.duration - COMPLETION_TOLERANCE) {
+            return null
+        }
+
+        val frames = ByteArray(size)
+
+        for ((index, chunk) in chunks.withIndex()) {
+            val offset = index * CHUNK_SIZE
+            System.arraycopy(chunk, 0, frames, offset, minOf(CHUNK_SIZE, size - offset))
+        }
+
+        return frames
+    }
+
+    companion object {
+        private const val CHUNK_SIZE = 64 * 1024
+        private const val MAX_FRAME_SIZE = 4096
+        private const val MAX_RECORDING_SIZE = 64 * 1024 * 1024
+        private const val COMPLETION_TOLERANCE = 2000L
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.music.sources.routing
+
+import com.sedmelluq.discord.lavaplayer.player.DefaultAudioPlayerManager
+import com.sedmelluq.discord.lavaplayer.source.AudioSourceManager
+import com.sedmelluq.discord.lavaplayer.track.AudioItem
+import com.sedmelluq.discord.lavaplayer.track.AudioReference
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo
+import gg.octave.bot.metrics.Metrics
+import gg.octave.bot.music.sources.opus.OpusFrameStore
+import java.io.DataInput
+import java.io.DataOutput
+import java.net.URI
+
+/**
+ * Registered ahead of every other source manager. Classifies the identifier once and hands it straight to
+ * the source manager responsible for it (checking the Opus store and track cache first where that makes sense), instead of
+ * letting lavaplayer offer it to every manager in turn.
+ *
+ * Identifiers it can't classify, or that their manager declined, are offered to the rest of the managers in
+ * registration order, skipping the ones that were already asked. Lavaplayer never probes past the router, except
+ * for references carrying a container descriptor, which it only offers to probing managers.
+ */
+class IdentifierRouter(private val sourceManagers: List<AudioSourceManager>) : AudioSourceManager {
+    private val sources = sourceManagers.associateBy { it.sourceName }
+    private val cache = sources["caching"]
+    private val opusCacheSource = sources["opus-cache"]
+    private val opusCache = opusCacheSource.takeIf { OpusFrameStore.enabled }
+
+    override fun getSourceName() = "router"
+
+    override fun loadItem(manager: DefaultAudioPlayerManager, reference: AudioReference): AudioItem? {
+        opusCache?.loadItem(manager, reference)?.let {
+            Metrics.counter(ROUTE_METRIC, "route:opus_cache", "outcome:cache").increment()
+            return it
+        }
+
+        val route = classify(reference.identifier)
+        val target = route?.let { sources[it.source] }
+        val asked = mutableSetOf(opusCacheSource)
+
+        when {
+            route == null -> Metrics.counter(ROUTE_METRIC, "route:unknown", "outcome:fallback").increment()
+            target == null -> Metrics.counter(ROUTE_METRIC, "route:${route.name}", "outcome:missing").increment()
+            else -> {
+                if (route.cacheable) {
+                    cache?.loadItem(manager, reference)?.let {
+                        Metrics.counter(ROUTE_METRIC, "route:${route.name}", "outcome:cache").increment()
+                        return it
+                    }
+                }
+
+                // Uncacheable routes aren't in the cache, so there's no point asking it later either.
+                asked += cache
+                asked += target
+
+                val item = target.loadItem(manager, reference)
+                Metrics.counter(ROUTE_METRIC, "route:${route.name}", "outcome:${if (item == null) "declined" else "routed"}").increment()
+
+                if (item != null) {
+                    return item
+                }
+            }
+        }
+
+        // A manager may decline something temporarily (Spotify without a token, for one), so let the others
+        // have a go rather than answering with no matches straight away.
+        for (source in sourceManagers) {
+            if (source !in asked) {
+                source.loadItem(manager, reference)?.let { return it }
+            }
+        }
+
+        return AudioReference.NO_TRACK
+    }
+
+    override fun isTrackEncodable(track: AudioTrack) = false
+
+    override fun encodeTrack(track: AudioTrack, output: DataOutput) {
+        throw UnsupportedOperationException("This source manager does not support the encoding of tracks.")
+    }
+
+    override fun decodeTrack(trackInfo: AudioTrackInfo, input: DataInput): AudioTrack {
+        throw UnsupportedOperationException("This source manager does not support the decoding of tracks.")
+    }
+
+    override fun shutdown() {
+
+    }
+
+    class Route(val name: String, val source: String, val cacheable: Boolean)
+
+    companion object {
+        private const val ROUTE_METRIC = "octave_bot.load.route"
+
+        private val YOUTUBE_SEARCH = Route("ytsearch", "youtube", true)
+        private val SOUNDCLOUD_SEARCH = Route("scsearch", "soundcloud", true)
+        private val YOUTUBE = Route("youtube", "youtube", true)
+        private val SOUNDCLOUD = Route("soundcloud", "soundcloud", true)
+        private val SPOTIFY = Route("spotify", "spotify", true)
+        private val ATTACHMENT = Route("attachment", "attachment", false)
+        private val BANDCAMP = Route("bandcamp", "bandcamp", true)
+        private val VIMEO = Route("vimeo", "vimeo", true)
+        private val TWITCH = Route("twitch", "twitch", false)
+        private val GETYARN = Route("getyarn", "getyarn.io", true)
+
+        private val HOSTS = mapOf(
+            "youtube.com" to YOUTUBE,
+            "music.youtube.com" to YOUTUBE,
+            "youtu.be" to YOUTUBE,
+            "soundcloud.com" to SOUNDCLOUD,
+            "open.spotify.com" to SPOTIFY,
+            "spotify.com" to SPOTIFY,
+            "cdn.discordapp.com" to ATTACHMENT,
+            "media.discordapp.net" to ATTACHMENT,
+            "vimeo.com" to VIMEO,
+            "twitch.tv" to TWITCH,
+            "getyarn.io" to GETYARN
+        )
+
+        fun classify(identifier: String): Route? {
+            return when {
+                identifier.startsWith("ytsearch:") -> YOUTUBE_SEARCH
+                identifier.startsWith("scsearch:") -> SOUNDCLOUD_SEARCH
+                identifier.startsWith("spotify:") -> SPOTIFY
+                identifier.startsWith("https://") || identifier.startsWith("http://") -> classifyHost(identifier)
+                else -> null
+            }
+        }
+
+        private fun classifyHost(url: String): Route? {
+            val host = try {
+                URI(url).host?.toLowerCase()?.removePrefix("www.")?.removePrefix("m.")
+            } catch (e: Exception) {
+                null
+            } ?: return null
+
+            return HOSTS[host] ?: BANDCAMP.takeIf { host.endsWith(".bandcamp.com") }
+        }
+    }
+}
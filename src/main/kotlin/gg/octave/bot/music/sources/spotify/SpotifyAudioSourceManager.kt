@@ -36,13 +36,12 @@ import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo
 import gg.octave.bot.music.sources.spotify.loaders.SpotifyAlbumLoader
 import gg.octave.bot.music.sources.spotify.loaders.SpotifyPlaylistLoader
 import gg.octave.bot.music.sources.spotify.loaders.SpotifyTrackLoader
+import gg.octave.bot.utils.Scheduler
+import gg.octave.bot.utils.RequestUtil
+import okhttp3.FormBody
+import okhttp3.Request
+import okhttp3.Response
 import org.apache.http.HttpStatus
-import org.apache.http.client.methods.CloseableHttpResponse
-import org.apache.http.client.methods.HttpGet
-import org.apache.http.client.methods.HttpPost
-import org.apache.http.client.methods.RequestBuilder
-import org.apache.http.entity.StringEntity
-import org.apache.http.util.EntityUtils
 import org.json.JSONObject
 import org.slf4j.LoggerFactory
 import java.io.DataInput
@@ -60,15 +59,24 @@ class SpotifyAudioSourceManager(
     private val sched = Executors.newSingleThreadScheduledExecutor()
     private val trackLoaderPool = Executors.newFixedThreadPool(10)
 
-    private val httpInterfaceManager = HttpClientTools.createDefaultThreadLocalManager()!!
-    internal var accessToken: String = ""
-        private set
+    private val tokens = SpotifyTokenStore(::requestAccessToken)
+    private val rateLimiter = SpotifyRateLimiter(RATE_PER_SECOND, BURST, TimeUnit.SECONDS.toMillis(10))
+
+    // Set once Spotify rejects the credentials, there's no point in asking again.
+    @Volatile
+    private var credentialsRejected = false
+
+    internal val accessToken: String
+        get() = tokens.accessToken
 
     val enabled: Boolean
         get() = "" != clientId && "" != clientSecret
 
     init {
-        refreshAccessToken()
+        if (enabled) {
+            refreshAccessToken()
+            Scheduler.fixedRateScheduleWithSuppression(sched, 30, 30, TimeUnit.SECONDS) { refreshAccessToken() }
+        }
     }
 
 
@@ -88,12 +96,17 @@ class SpotifyAudioSourceManager(
     }
 
     override fun shutdown() {
-        httpInterfaceManager.close()
+
     }
 
     override fun loadItem(manager: DefaultAudioPlayerManager, reference: AudioReference): AudioItem? {
         if (accessToken.isEmpty()) {
-            return null
+            if (loaders.none { it.pattern().matcher(reference.identifier).find() }) {
+                return null
+            }
+
+            // Not a no-match, so it shouldn't be cached as one; the token is usually back within seconds.
+            throw FriendlyException("Spotify is unavailable right now, try again shortly.", FriendlyException.Severity.SUSPICIOUS, null)
         }
 
         return try {
@@ -147,50 +160,46 @@ class SpotifyAudioSourceManager(
      * Spotify shizzle
      */
     fun refreshAccessToken() {
-        if (!enabled) {
+        if (!enabled || credentialsRejected) {
             return
         }
 
+        tokens.refresh()
+    }
+
+    /**
+     * Fetches a new access token from Spotify. Only called by the node that holds the refresh lock.
+     */
+    private fun requestAccessToken(): SpotifyTokenStore.Token? {
         val base64Auth = Base64.getEncoder().encodeToString("$clientId:$clientSecret".toByteArray())
 
-        request(HttpPost.METHOD_NAME, "https://accounts.spotify.com/api/token") {
+        RequestUtil.request {
+            url("https://accounts.spotify.com/api/token")
             addHeader("Authorization", "Basic $base64Auth")
-            addHeader("Content-Type", "application/x-www-form-urlencoded")
-            entity = StringEntity("grant_type=client_credentials")
-        }.use {
-            if (it.statusLine.statusCode != HttpStatus.SC_OK) {
-                log.warn("Received code ${it.statusLine.statusCode} from Spotify while trying to update access token!")
-                sched.schedule(::refreshAccessToken, 1, TimeUnit.MINUTES)
-                return
+            post(FormBody.Builder().add("grant_type", "client_credentials").build())
+        }.execute().use {
+            if (it.code() != HttpStatus.SC_OK) {
+                log.warn("Received code ${it.code()} from Spotify while trying to update access token!")
+                return null
             }
 
-            val content = EntityUtils.toString(it.entity)
+            val content = it.body()!!.string()
             val json = JSONObject(content)
 
             if (json.has("error")) {
                 val errorMessage = json.getString("error")
                 if (errorMessage.startsWith("invalid_")) {
                     log.error("Spotify API access disabled ($errorMessage)")
-                    accessToken = ""
-                    return
+                    credentialsRejected = true
+                    return null
                 }
 
-                log.error("There was an error refreshing access token: $errorMessage. Queueing refresh for a minute from now.")
-                sched.schedule(::refreshAccessToken, 1, TimeUnit.MINUTES)
-                return
+                log.error("There was an error refreshing access token: $errorMessage. Retrying on the next refresh.")
+                return null
             }
 
-            val refreshSeconds = json.getInt("expires_in").toLong()
-            accessToken = json.getString("access_token")
-
-            val refreshMillis = TimeUnit.SECONDS.toMillis(refreshSeconds)
-            // Refresh 5 minutes early. This means should there be an issue with Spotify, we can refresh 5 times (1/min)
-            // before the token actually expires.
-            val earlyRefresh = TimeUnit.MINUTES.toMillis(5)
-            val refreshDelay = refreshMillis - earlyRefresh
-            sched.schedule(::refreshAccessToken, refreshDelay, TimeUnit.MILLISECONDS)
-
-            log.info("Successfully refreshed Spotify access token.")
+            val expiresAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(json.getLong("expires_in"))
+            return SpotifyTokenStore.Token(json.getString("access_token"), expiresAt)
         }
     }
 
@@ -198,19 +207,36 @@ class SpotifyAudioSourceManager(
     /**
      * Utils boiiii
      */
-    internal fun request(url: String, requestBuilder: RequestBuilder.() -> Unit): CloseableHttpResponse {
-        return request(HttpGet.METHOD_NAME, url, requestBuilder)
-    }
+    /**
+     * Makes an API call, waiting for the cluster-wide rate limit. A 429 blocks every node for the
+     * duration of its Retry-After, after which the call is tried again.
+     */
+    internal fun request(url: String, requestBuilder: Request.Builder.() -> Unit): Response {
+        for (attempt in 1 until MAX_ATTEMPTS) {
+            rateLimiter.acquire()
+            val response = RequestUtil.request { url(url).apply(requestBuilder) }.execute()
 
-    private fun request(method: String, url: String, requestBuilder: RequestBuilder.() -> Unit): CloseableHttpResponse {
-        return httpInterfaceManager.`interface`.use {
-            it.execute(RequestBuilder.create(method).setUri(url).apply(requestBuilder).build())
+            if (response.code() != HTTP_TOO_MANY_REQUESTS) {
+                return response
+            }
+
+            val retryAfter = response.header("Retry-After")?.toLongOrNull() ?: 1
+            response.close()
+            rateLimiter.backOff(TimeUnit.SECONDS.toMillis(retryAfter))
         }
+
+        rateLimiter.acquire()
+        return RequestUtil.request { url(url).apply(requestBuilder) }.execute()
     }
 
     companion object {
         private val log = LoggerFactory.getLogger(SpotifyAudioSourceManager::class.java)
 
+        private const val RATE_PER_SECOND = 10.0
+        private const val BURST = 20
+        private const val MAX_ATTEMPTS = 3
+        private const val HTTP_TOO_MANY_REQUESTS = 429
+
         private val loaders = listOf(
             SpotifyAlbumLoader(),
             SpotifyPlaylistLoader(),
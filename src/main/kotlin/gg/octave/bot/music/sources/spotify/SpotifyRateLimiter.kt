@@ -0,0 +1,140 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.music.sources.spotify
+
+import com.sedmelluq.discord.lavaplayer.tools.FriendlyException
+import gg.octave.bot.Launcher
+import gg.octave.bot.metrics.Metrics
+import org.slf4j.LoggerFactory
+import redis.clients.jedis.exceptions.JedisException
+import redis.clients.jedis.params.SetParams
+import java.util.concurrent.TimeUnit
+
+/**
+ * Cluster-wide token bucket for Spotify API calls, kept in Redis.
+ *
+ * When Spotify answers with a 429, [backOff] blocks every node until its `Retry-After` has passed,
+ * not just the one that was throttled. If Redis can't be reached, calls are let through rather than
+ * failing track loads.
+ */
+class SpotifyRateLimiter(
+    private val ratePerSecond: Double,
+    private val capacity: Int,
+    private val maxWaitMs: Long
+) {
+    /**
+     * Blocks until a call may be made.
+     * @throws FriendlyException if that would take longer than [maxWaitMs].
+     */
+    fun acquire() {
+        var waited = 0L
+
+        while (true) {
+            val wait = try {
+                Launcher.database.redis {
+                    it.eval(BUCKET_SCRIPT, listOf(BUCKET_KEY, BLOCKED_KEY),
+                        listOf(ratePerSecond.toString(), capacity.toString())) as Long
+                }
+            } catch (e: JedisException) {
+                log.debug("Unable to reach Redis for the Spotify rate limit", e)
+                0L
+            }
+
+            if (wait <= 0) {
+                if (waited > 0) {
+                    Metrics.histogram("octave_bot.spotify.throttle_wait").record(waited)
+                }
+
+                return
+            }
+
+            if (waited + wait > maxWaitMs) {
+                Metrics.counter("octave_bot.spotify.throttled").increment()
+                throw FriendlyException("Spotify is rate limiting requests right now, try again in a bit.",
+                    FriendlyException.Severity.COMMON, null)
+            }
+
+            Thread.sleep(wait)
+            waited += wait
+        }
+    }
+
+    /**
+     * Stops all nodes from calling Spotify for [retryAfterMs].
+     */
+    fun backOff(retryAfterMs: Long) {
+        Metrics.counter("octave_bot.spotify.rate_limited").increment()
+        log.warn("Rate limited by Spotify, backing off for {}ms", retryAfterMs)
+
+        try {
+            Launcher.database.redis { it.set(BLOCKED_KEY, "1", SetParams.setParams().px(retryAfterMs)) }
+        } catch (e: JedisException) {
+            log.debug("Unable to reach Redis for the Spotify rate limit", e)
+        }
+    }
+
+    companion object {
+        private val log = LoggerFactory.getLogger(SpotifyRateLimiter::class.java)
+
+        private const val BUCKET_KEY = "spotify:ratelimit"
+        private const val BLOCKED_KEY = "spotify:retry-after"
+
+        /**
+         * Returns 0 if a token was taken, otherwise how many milliseconds to wait before trying again.
+         *
+         * The time is read from Redis rather than passed in, so clock skew between nodes can't refill or drain
+         * the bucket. Reading it makes the script non-deterministic, which needs effect replication on Redis < 5.
+         */
+        private val BUCKET_SCRIPT = """
+            redis.replicate_commands()
+
+            local bucket, blocked = KEYS[1], KEYS[2]
+            local rate, capacity = tonumber(ARGV[1]), tonumber(ARGV[2])
+            local time = redis.call('TIME')
+            local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+            local blockedFor = redis.call('PTTL', blocked)
+            if blockedFor > 0 then
+                return blockedFor
+            end
+
+            local state = redis.call('HMGET', bucket, 'tokens', 'updated')
+            local tokens = tonumber(state[1]) or capacity
+            local updated = tonumber(state[2]) or now
+            tokens = math.min(capacity, tokens + math.max(0, now - updated) * rate / 1000)
+
+            local wait = 0
+            if tokens >= 1 then
+                tokens = tokens - 1
+            else
+                wait = math.ceil((1 - tokens) * 1000 / rate)
+            end
+
+            redis.call('HMSET', bucket, 'tokens', tostring(tokens), 'updated', now)
+            redis.call('PEXPIRE', bucket, ${TimeUnit.MINUTES.toMillis(1)})
+            return wait
+        """.trimIndent()
+    }
+}
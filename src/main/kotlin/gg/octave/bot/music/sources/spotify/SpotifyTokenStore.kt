@@ -0,0 +1,132 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.music.sources.spotify
+
+import gg.octave.bot.Launcher
+import org.slf4j.LoggerFactory
+import redis.clients.jedis.exceptions.JedisException
+import redis.clients.jedis.params.SetParams
+import java.util.*
+import java.util.concurrent.TimeUnit
+
+/**
+ * Keeps one Spotify access token for the whole cluster in Redis.
+ *
+ * Every node calls [refresh] periodically. A node adopts the shared token while it has more than
+ * [REFRESH_MARGIN] left; once it doesn't, whichever node takes the refresh lock first fetches a new
+ * one with [fetch] and publishes it, and the others pick it up on their next call. If Redis can't be
+ * reached, the node falls back to refreshing its own token.
+ */
+class SpotifyTokenStore(private val fetch: () -> Token?) {
+    private val owner = UUID.randomUUID().toString()
+
+    @Volatile
+    private var token: Token? = null
+
+    /**
+     * The current access token, or an empty string if there's no valid one.
+     */
+    val accessToken: String
+        get() = token?.takeIf { it.expiresAt > System.currentTimeMillis() }?.value ?: ""
+
+    fun refresh() {
+        try {
+            refreshShared()
+        } catch (e: JedisException) {
+            log.warn("Unable to reach Redis for the shared Spotify token, refreshing locally", e)
+
+            if (!isFresh(token)) {
+                token = fetch() ?: token
+            }
+        }
+    }
+
+    private fun refreshShared() {
+        val shared = readShared()
+
+        if (isFresh(shared)) {
+            token = shared
+            return
+        }
+
+        val locked = Launcher.database.redis { it.set(LOCK_KEY, owner, SetParams.setParams().nx().px(LOCK_TTL)) } != null
+
+        if (!locked) {
+            // Another node is refreshing it, take what's there for now.
+            token = shared ?: token
+            return
+        }
+
+        try {
+            val fresh = fetch()
+                ?: return
+
+            val ttl = fresh.expiresAt - System.currentTimeMillis()
+
+            if (ttl > 0) {
+                Launcher.database.redis { it.set(TOKEN_KEY, "${fresh.expiresAt}:${fresh.value}", SetParams.setParams().px(ttl)) }
+            }
+
+            token = fresh
+            log.info("Refreshed the shared Spotify access token.")
+        } finally {
+            Launcher.database.redis { it.eval(RELEASE_SCRIPT, listOf(LOCK_KEY), listOf(owner)) }
+        }
+    }
+
+    private fun readShared(): Token? {
+        val stored = Launcher.database.redis { it.get(TOKEN_KEY) }
+            ?: return null
+
+        val expiresAt = stored.substringBefore(':').toLongOrNull()
+            ?: return null
+
+        return Token(stored.substringAfter(':'), expiresAt)
+    }
+
+    private fun isFresh(token: Token?) = token != null && token.expiresAt - System.currentTimeMillis() > REFRESH_MARGIN
+
+    /**
+     * @param expiresAt Epoch milliseconds at which Spotify stops accepting the token.
+     */
+    class Token(val value: String, val expiresAt: Long)
+
+    companion object {
+        private val log = LoggerFactory.getLogger(SpotifyTokenStore::class.java)
+
+        private const val TOKEN_KEY = "spotify:token"
+        private const val LOCK_KEY = "spotify:token-lock"
+        private val LOCK_TTL = TimeUnit.SECONDS.toMillis(30)
+        // Refreshing 5 minutes early leaves room for a few failed attempts before the token actually expires.
+        private val REFRESH_MARGIN = TimeUnit.MINUTES.toMillis(5)
+
+        private val RELEASE_SCRIPT = """
+            if redis.call('GET', KEYS[1]) == ARGV[1] then
+                return redis.call('DEL', KEYS[1])
+            end
+            return 0
+        """.trimIndent()
+    }
+}
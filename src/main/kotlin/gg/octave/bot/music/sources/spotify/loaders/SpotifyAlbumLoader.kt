@@ -31,7 +31,6 @@ import com.sedmelluq.discord.lavaplayer.track.AudioTrack
 import com.sedmelluq.discord.lavaplayer.track.BasicAudioPlaylist
 import gg.octave.bot.music.sources.spotify.SpotifyAudioSourceManager
 import org.apache.http.HttpStatus
-import org.apache.http.util.EntityUtils
 import org.json.JSONArray
 import org.json.JSONObject
 import java.util.concurrent.CompletableFuture
@@ -60,11 +59,11 @@ class SpotifyAlbumLoader : Loader {
         return sourceManager.request("https://api.spotify.com/v1/albums/$albumId") {
             addHeader("Authorization", "Bearer ${sourceManager.accessToken}")
         }.use {
-            check(it.statusLine.statusCode == HttpStatus.SC_OK) {
-                "Received code ${it.statusLine.statusCode} from Spotify while fetching album tracks"
+            check(it.code() == HttpStatus.SC_OK) {
+                "Received code ${it.code()} from Spotify while fetching album tracks"
             }
 
-            val content = EntityUtils.toString(it.entity)
+            val content = it.body()!!.string()
             JSONObject(content)
         }
     }
@@ -31,7 +31,6 @@ import com.sedmelluq.discord.lavaplayer.track.AudioTrack
 import com.sedmelluq.discord.lavaplayer.track.BasicAudioPlaylist
 import gg.octave.bot.music.sources.spotify.SpotifyAudioSourceManager
 import org.apache.http.HttpStatus
-import org.apache.http.util.EntityUtils
 import org.json.JSONObject
 import java.util.concurrent.CompletableFuture
 import java.util.regex.Matcher
@@ -53,11 +52,11 @@ class SpotifyPlaylistLoader : Loader {
         return sourceManager.request("https://api.spotify.com/v1/playlists/$playlistId") {
             addHeader("Authorization", "Bearer ${sourceManager.accessToken}")
         }.use {
-            check(it.statusLine.statusCode == HttpStatus.SC_OK) {
-                "Received code ${it.statusLine.statusCode} from Spotify while fetching playlist information"
+            check(it.code() == HttpStatus.SC_OK) {
+                "Received code ${it.code()} from Spotify while fetching playlist information"
             }
 
-            val content = EntityUtils.toString(it.entity)
+            val content = it.body()!!.string()
             JSONObject(content)
         }
     }
@@ -67,11 +66,11 @@ class SpotifyPlaylistLoader : Loader {
         return sourceManager.request("https://api.spotify.com/v1/playlists/$playlistId/tracks") {
             addHeader("Authorization", "Bearer ${sourceManager.accessToken}")
         }.use {
-            check(it.statusLine.statusCode == HttpStatus.SC_OK) {
-                "Received code ${it.statusLine.statusCode} from Spotify while fetching playlist tracks"
+            check(it.code() == HttpStatus.SC_OK) {
+                "Received code ${it.code()} from Spotify while fetching playlist tracks"
             }
 
-            val content = EntityUtils.toString(it.entity)
+            val content = it.body()!!.string()
             val json = JSONObject(content)
 
             if (!json.has("items")) {
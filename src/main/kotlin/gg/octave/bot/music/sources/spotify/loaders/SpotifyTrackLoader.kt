@@ -28,7 +28,6 @@ import com.sedmelluq.discord.lavaplayer.player.DefaultAudioPlayerManager
 import com.sedmelluq.discord.lavaplayer.track.AudioItem
 import gg.octave.bot.music.sources.spotify.SpotifyAudioSourceManager
 import org.apache.http.HttpStatus
-import org.apache.http.util.EntityUtils
 import org.json.JSONObject
 import java.util.regex.Matcher
 
@@ -50,11 +49,11 @@ class SpotifyTrackLoader : Loader {
         return sourceManager.request("https://api.spotify.com/v1/tracks/$trackId") {
             addHeader("Authorization", "Bearer ${sourceManager.accessToken}")
         }.use {
-            check(it.statusLine.statusCode == HttpStatus.SC_OK) {
-                "Received code ${it.statusLine.statusCode} from Spotify while fetching track information"
+            check(it.code() == HttpStatus.SC_OK) {
+                "Received code ${it.code()} from Spotify while fetching track information"
             }
 
-            val content = EntityUtils.toString(it.entity)
+            val content = it.body()!!.string()
             JSONObject(content)
         }
     }
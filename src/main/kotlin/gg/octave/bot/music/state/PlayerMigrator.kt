@@ -0,0 +1,155 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.music.state
+
+import gg.octave.bot.Launcher
+import gg.octave.bot.music.PlayerRegistry
+import net.dv8tion.jda.api.JDA
+import org.slf4j.LoggerFactory
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Hands players over between nodes during deploys.
+ *
+ * When draining, the full state of every active player is written to Redis, grouped by shard.
+ * Whichever node picks up a shard next restores those players as soon as the shard is ready,
+ * reconnecting to the same voice channel and resuming the track at the saved position.
+ */
+class PlayerMigrator(private val registry: PlayerRegistry) {
+    private val executor = Executors.newSingleThreadExecutor()
+    private val drained = AtomicBoolean(false)
+
+    /**
+     * Saves the state of every active player. Only the first call has any effect.
+     * @return The number of players saved.
+     */
+    fun drain(): Int {
+        if (!drained.compareAndSet(false, true)) {
+            return 0
+        }
+
+        val states = registry.registry.values
+            .filter { it.guild?.selfMember?.voiceState?.inVoiceChannel() == true && (it.player.playingTrack != null || it.radio != null) }
+            .mapNotNull {
+                try {
+                    PlayerState.of(it)
+                } catch (e: Exception) {
+                    log.warn("Unable to save player state for guild {}", it.guildId, e)
+                    null
+                }
+            }
+            .groupBy { PlayerRegistry.shardOf(it.guildId) }
+
+        Launcher.database.redis {
+            val pipeline = it.pipelined()
+
+            for ((shardId, shardStates) in states) {
+                val key = keyFor(shardId)
+                pipeline.hset(key, shardStates.associate { s -> s.guildId.toString() to s.serialize() })
+                pipeline.expire(key, STATE_TTL_SECONDS)
+            }
+
+            pipeline.sync()
+        }
+
+        val saved = states.values.sumBy { it.size }
+        log.info("Drained {} players across {} shards", saved, states.size)
+        return saved
+    }
+
+    /**
+     * Restores any players that were drained from the given shard. Runs off the calling thread.
+     */
+    fun restore(jda: JDA) {
+        executor.execute {
+            val key = keyFor(jda.shardInfo.shardId)
+            val states = Launcher.database.redis {
+                it.hgetAll(key).also { _ -> it.del(key) }
+            }
+
+            if (states.isEmpty()) {
+                return@execute
+            }
+
+            val restored = states.values.count {
+                try {
+                    restore(jda, PlayerState.deserialize(it))
+                } catch (e: Exception) {
+                    log.warn("Unable to restore a drained player on shard {}", jda.shardInfo.shardId, e)
+                    false
+                }
+            }
+
+            log.info("Restored {}/{} drained players on shard {}", restored, states.size, jda.shardInfo.shardId)
+        }
+    }
+
+    private fun restore(jda: JDA, state: PlayerState): Boolean {
+        val guild = jda.getGuildById(state.guildId)
+            ?: return false
+        val channel = guild.getVoiceChannelById(state.voiceChannelId)
+            ?: return false
+
+        // Nobody is left to listen.
+        if (channel.members.none { !it.user.isBot } || registry.contains(guild)) {
+            return false
+        }
+
+        val manager = registry.get(guild)
+        state.applySettings(manager)
+
+        if (!manager.reconnect(channel)) {
+            return false
+        }
+
+        manager.queue.clearExpire()
+        manager.player.isPaused = state.isPaused
+
+        val track = state.track?.let(registry.playerManager::decodeMaybeNullAudioTrack)
+
+        if (track != null) {
+            if (state.position > 0 && track.isSeekable) {
+                track.position = state.position
+            }
+
+            manager.player.startTrack(track, false)
+        } else {
+            manager.nextTrack()
+        }
+
+        return true
+    }
+
+    private fun keyFor(shardId: Int) = "player-drain:$shardId"
+
+    companion object {
+        private val log = LoggerFactory.getLogger(PlayerMigrator::class.java)
+
+        // Long enough for a rolling restart to bring the shard back up, short enough that
+        // a node that never comes back doesn't resurrect players much later.
+        private const val STATE_TTL_SECONDS = 300
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.music.state
+
+import gg.octave.bot.Launcher
+import gg.octave.bot.music.MusicManagerV2
+import gg.octave.bot.music.radio.RadioTrackContext
+import gg.octave.bot.music.settings.RepeatOption
+import gg.octave.bot.music.utils.TrackContext
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.util.*
+
+/**
+ * Serializable snapshot of a player, used to carry playback across node restarts.
+ */
+class PlayerState(
+    val guildId: Long,
+    val voiceChannelId: Long,
+    val track: String?,
+    val position: Long,
+    val isPaused: Boolean,
+    val volume: Int,
+    val repeatOption: RepeatOption,
+    private val radio: ByteArray?,
+    private val filters: ByteArray
+) {
+    /**
+     * Applies everything except the track and voice connection to the given manager.
+     * @param includeVolume Whether to apply the volume. Volume is normally taken from the guild's settings.
+     */
+    fun applySettings(manager: MusicManagerV2, includeVolume: Boolean = true) {
+        if (includeVolume) {
+            manager.player.volume = volume
+        }
+
+        manager.repeatOption = repeatOption
+        manager.radio = radio?.let { TrackContext.deserialize(ByteArrayInputStream(it)) as? RadioTrackContext }
+        DataInputStream(ByteArrayInputStream(filters)).use(manager.dspFilter::deserialize)
+    }
+
+    fun serialize(): String {
+        val stream = ByteArrayOutputStream()
+        val writer = DataOutputStream(stream)
+        writer.writeInt(VERSION)
+        writer.writeLong(guildId)
+        writer.writeLong(voiceChannelId)
+        writer.writeBoolean(track != null)
+        track?.let(writer::writeUTF)
+        writer.writeLong(position)
+        writer.writeBoolean(isPaused)
+        writer.writeInt(volume)
+        writer.writeUTF(repeatOption.name)
+        writer.writeInt(radio?.size ?: -1)
+        radio?.let(writer::write)
+        writer.writeInt(filters.size)
+        writer.write(filters)
+        writer.close() // This invokes flush.
+
+        return Base64.getEncoder().encodeToString(stream.toByteArray())
+    }
+
+    companion object {
+        private const val VERSION = 1
+
+        /**
+         * @param includeTrack Whether to include the playing track and its position. Without it, only the
+         *                     player settings are captured, which is cheap enough to do on every change.
+         */
+        fun of(manager: MusicManagerV2, includeTrack: Boolean = true): PlayerState {
+            val playingTrack = manager.player.playingTrack?.takeIf { includeTrack }
+            val encodedTrack = playingTrack?.let {
+                try {
+                    Launcher.players.playerManager.encodeAudioTrack(it)
+                } catch (e: Exception) {
+                    null // Not every source can encode its tracks, in which case only the settings are kept.
+                }
+            }
+
+            val radio = manager.radio?.let {
+                ByteArrayOutputStream().also(it::serialize).toByteArray()
+            }
+
+            val filters = ByteArrayOutputStream().also { stream ->
+                DataOutputStream(stream).use(manager.dspFilter::serialize)
+            }.toByteArray()
+
+            return PlayerState(
+                manager.guildId,
+                manager.guild?.selfMember?.voiceState?.channel?.idLong ?: -1L,
+                encodedTrack,
+                playingTrack?.position ?: 0L,
+                manager.player.isPaused,
+                manager.player.volume,
+                manager.repeatOption,
+                radio,
+                filters
+            )
+        }
+
+        fun deserialize(encoded: String): PlayerState {
+            val reader = DataInputStream(ByteArrayInputStream(Base64.getDecoder().decode(encoded)))
+
+            reader.use {
+                val version = it.readInt()
+                if (version != VERSION) {
+                    throw IllegalArgumentException("Unsupported PlayerState version $version!")
+                }
+
+                val guildId = it.readLong()
+                val voiceChannelId = it.readLong()
+                val track = if (it.readBoolean()) it.readUTF() else null
+                val position = it.readLong()
+                val isPaused = it.readBoolean()
+                val volume = it.readInt()
+                val repeatOption = RepeatOption.valueOf(it.readUTF())
+                val radio = it.readInt().takeIf { size -> size >= 0 }?.let { size -> ByteArray(size).also(it::readFully) }
+                val filters = ByteArray(it.readInt()).also(it::readFully)
+
+                return PlayerState(guildId, voiceChannelId, track, position, isPaused, volume, repeatOption, radio, filters)
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.music.state
+
+import gg.octave.bot.Launcher
+import gg.octave.bot.music.MusicManagerV2
+import gg.octave.bot.music.settings.RepeatOption
+import org.slf4j.LoggerFactory
+import java.util.concurrent.TimeUnit
+
+/**
+ * Keeps each guild's player settings (repeat option, radio and filters) in Redis, so they outlive the player.
+ */
+object PlayerStateStore {
+    private val log = LoggerFactory.getLogger(PlayerStateStore::class.java)
+    private val STATE_TTL = TimeUnit.DAYS.toSeconds(1).toInt()
+
+    private fun keyFor(guildId: Long) = "playerState:$guildId"
+
+    /**
+     * Loads the saved settings, if any, into a freshly created manager.
+     */
+    fun load(manager: MusicManagerV2) {
+        val encoded = try {
+            Launcher.database.redis { it.get(keyFor(manager.guildId)) }
+        } catch (e: Exception) {
+            log.warn("Unable to load player state for guild {}", manager.guildId, e)
+            null
+        } ?: return
+
+        try {
+            PlayerState.deserialize(encoded).applySettings(manager, includeVolume = false)
+        } catch (e: Exception) {
+            log.warn("Discarding unreadable player state for guild {}", manager.guildId, e)
+        }
+    }
+
+    fun save(manager: MusicManagerV2) {
+        val key = keyFor(manager.guildId)
+
+        Launcher.database.redis {
+            if (isDefault(manager)) {
+                it.del(key) // Nothing worth restoring; don't keep a record around.
+            } else {
+                it.setex(key, STATE_TTL, PlayerState.of(manager, includeTrack = false).serialize())
+            }
+        }
+    }
+
+    private fun isDefault(manager: MusicManagerV2): Boolean {
+        return manager.repeatOption == RepeatOption.NONE && manager.radio == null && !manager.dspFilter.isActive
+    }
+}
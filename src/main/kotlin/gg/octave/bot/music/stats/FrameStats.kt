@@ -0,0 +1,129 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.music.stats
+
+/**
+ * Frame delivery counters for a single player.
+ *
+ * [record] is called by the audio send thread once per 20ms tick, so it only touches primitive
+ * fields and never allocates. Everything else is read by [FrameStatsCollector] on its own thread.
+ */
+class FrameStats {
+    // Written by the send thread.
+    @Volatile
+    var provided = 0L
+        private set
+    @Volatile
+    var missed = 0L
+        private set
+    @Volatile
+    var currentStreak = 0
+        private set
+    @Volatile
+    var longestStreak = 0
+        private set
+    @Volatile
+    var lastFrameAt = 0L
+        private set
+    @Volatile
+    var longestGap = 0L
+        private set
+    private var idle = true
+
+    // Written by the collector, describing the last sampling window.
+    var windowProvided = 0L
+        internal set
+    var windowMissed = 0L
+        internal set
+    var windowLongestStreak = 0
+        internal set
+    var windowLongestGapMs = 0L
+        internal set
+    var bufferFill = -1
+        internal set
+
+    internal var sampledProvided = 0L
+    internal var sampledMissed = 0L
+
+    val windowLossPercent: Double
+        get() = (windowProvided + windowMissed).takeIf { it > 0 }?.let { windowMissed * 100.0 / it } ?: 0.0
+
+    val msSinceLastFrame: Long
+        get() = if (lastFrameAt == 0L) -1 else (System.nanoTime() - lastFrameAt) / 1_000_000
+
+    /**
+     * @param provided Whether the player had a frame ready for this tick.
+     * @param expected Whether a frame was expected, i.e. a track is playing and the player isn't paused.
+     *                 Missing frames while idle are not underruns.
+     */
+    fun record(provided: Boolean, expected: Boolean) {
+        if (provided) {
+            this.provided++
+            val now = System.nanoTime()
+            val last = lastFrameAt
+            lastFrameAt = now
+
+            // Gaps between delivered frames are how send-side jitter shows up, since the send system
+            // pulls frames in bursts to keep its buffer topped up.
+            if (!idle && expected && now - last > longestGap) {
+                longestGap = now - last
+            }
+
+            idle = !expected
+
+            if (currentStreak > 0) {
+                currentStreak = 0
+            }
+        } else if (expected) {
+            missed++
+            val streak = currentStreak + 1
+            currentStreak = streak
+
+            if (streak > longestStreak) {
+                longestStreak = streak
+            }
+        } else {
+            idle = true
+        }
+    }
+
+    /**
+     * Resets the longest streak so the next window starts fresh. Returns the streak of the window that ended.
+     */
+    internal fun takeLongestStreak(): Int {
+        val streak = longestStreak
+        longestStreak = currentStreak
+        return streak
+    }
+
+    /**
+     * Resets the longest gap between frames. Returns the gap of the window that ended, in milliseconds.
+     */
+    internal fun takeLongestGap(): Long {
+        val gap = longestGap
+        longestGap = 0
+        return gap / 1_000_000
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.music.stats
+
+import com.sedmelluq.discord.lavaplayer.track.InternalAudioTrack
+import com.sedmelluq.discord.lavaplayer.track.playback.LocalAudioTrackExecutor
+import gg.octave.bot.Launcher
+import gg.octave.bot.metrics.Metrics
+import gg.octave.bot.metrics.jfr.AudioUnderrunEvent
+import gg.octave.bot.metrics.jfr.JfrRecorder
+import gg.octave.bot.music.MusicManagerV2
+import gg.octave.bot.music.PlayerRegistry
+import gg.octave.bot.utils.Scheduler
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import kotlin.math.roundToLong
+
+/**
+ * Periodically samples the [FrameStats] of every player on this node and pushes
+ * per-player and per-node frame delivery metrics to [Metrics].
+ */
+class FrameStatsCollector(private val registry: PlayerRegistry) {
+    private val executor = Executors.newSingleThreadScheduledExecutor()
+
+    var nodeProvided = 0L
+        private set
+    var nodeMissed = 0L
+        private set
+    var stutteringPlayers = 0L
+        private set
+
+    init {
+        Scheduler.fixedRateScheduleWithSuppression(executor, WINDOW_SECONDS, WINDOW_SECONDS, TimeUnit.SECONDS) { sample() }
+        Metrics.gauge("octave_bot.audio.stuttering_players") { stutteringPlayers }
+    }
+
+    val nodeLossPercent: Double
+        get() = (nodeProvided + nodeMissed).takeIf { it > 0 }?.let { nodeMissed * 100.0 / it } ?: 0.0
+
+    fun sample() {
+        var provided = 0L
+        var missed = 0L
+        var stuttering = 0L
+
+        for (manager in registry.registry.values) {
+            val stats = manager.frameStats
+            val currentProvided = stats.provided
+            val currentMissed = stats.missed
+
+            stats.windowProvided = currentProvided - stats.sampledProvided
+            stats.windowMissed = currentMissed - stats.sampledMissed
+            stats.windowLongestStreak = stats.takeLongestStreak()
+            stats.windowLongestGapMs = stats.takeLongestGap()
+            stats.bufferFill = bufferFill(manager)
+            stats.sampledProvided = currentProvided
+            stats.sampledMissed = currentMissed
+
+            provided += stats.windowProvided
+            missed += stats.windowMissed
+            Launcher.audioSendFactory.evaluate(manager)
+
+            if (stats.windowMissed == 0L) {
+                continue
+            }
+
+            stuttering++
+            Metrics.histogram("octave_bot.audio.frames_missed").record(stats.windowMissed)
+            Metrics.histogram("octave_bot.audio.frame_loss").record(stats.windowLossPercent.roundToLong())
+            Metrics.histogram("octave_bot.audio.underrun_streak").record(stats.windowLongestStreak.toLong())
+
+            if (stats.bufferFill >= 0) {
+                Metrics.histogram("octave_bot.audio.buffer_fill").record(stats.bufferFill.toLong())
+            }
+
+            if (JfrRecorder.enabled) {
+                AudioUnderrunEvent().apply {
+                    guildId = manager.guildId
+                    framesMissed = stats.windowMissed
+                    frameLoss = stats.windowLossPercent / 100
+                    longestStreak = stats.windowLongestStreak
+                    bufferFill = stats.bufferFill
+                }.commit()
+            }
+        }
+
+        nodeProvided = provided
+        nodeMissed = missed
+
+        Metrics.counter("octave_bot.audio.frames_provided").add(provided)
+        Metrics.counter("octave_bot.audio.frames_missed_total").add(missed)
+        stutteringPlayers = stuttering
+    }
+
+    /**
+     * @return The players with the highest frame loss in the last sampling window.
+     */
+    fun worst(limit: Int): List<MusicManagerV2> {
+        return registry.registry.values
+            .filter { it.frameStats.windowMissed > 0 }
+            .sortedByDescending { it.frameStats.windowLossPercent }
+            .take(limit)
+    }
+
+    /**
+     * @return How full the track's frame buffer is, as a percentage, or -1 if unknown.
+     */
+    private fun bufferFill(manager: MusicManagerV2): Int {
+        val track = manager.player.playingTrack as? InternalAudioTrack
+            ?: return -1
+        val buffer = (track.activeExecutor as? LocalAudioTrackExecutor)?.audioBuffer
+            ?: return -1
+        val capacity = buffer.fullCapacity.takeIf { it > 0 }
+            ?: return -1
+
+        return (capacity - buffer.remainingCapacity) * 100 / capacity
+    }
+
+    companion object {
+        const val WINDOW_SECONDS = 10L
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.music.tracing
+
+import gg.octave.bot.metrics.Metrics
+import java.util.*
+import java.util.concurrent.TimeUnit
+
+/**
+ * Timings for a single track load, from the command preparing it to the result handler finishing.
+ *
+ * Stages are recorded as spans: `prepare` (building the result handler), `queue` (waiting for a loader
+ * thread), `source:<name>` for every source manager probed, and `check`/`enqueue`/`handler` inside the
+ * result handler. Every load feeds the stage histograms; loads slower than [SLOW_LOAD_MS] are also kept
+ * in [slowest] with their full breakdown.
+ */
+class LoadTrace(val identifier: String) {
+    val startedAt = System.nanoTime()
+    val timestamp = System.currentTimeMillis()
+    private var dispatchedAt = 0L
+    private var probing = false
+
+    val spans: MutableList<Span> = Collections.synchronizedList(mutableListOf())
+    var probed = 0
+        private set
+    var claimedBy: String? = null
+        private set
+    var result: String? = null
+        private set
+    var totalNanos = 0L
+        private set
+
+    inline fun <T> span(name: String, block: () -> T): T {
+        val start = System.nanoTime()
+
+        try {
+            return block()
+        } finally {
+            spans += Span(name, System.nanoTime() - start)
+        }
+    }
+
+    internal fun dispatched() {
+        dispatchedAt = System.nanoTime()
+    }
+
+    /**
+     * Makes this trace [current] on this thread while the result handler runs.
+     */
+    internal inline fun bind(block: () -> Unit) {
+        val previous = current.get()
+        current.set(this)
+
+        try {
+            block()
+        } finally {
+            current.set(previous)
+        }
+    }
+
+    internal fun <T> probe(sourceName: String, block: () -> T?): T? {
+        if (!probing) {
+            probing = true
+            spans += Span("queue", System.nanoTime() - dispatchedAt)
+        }
+
+        probed++
+        val item = span("source:$sourceName", block)
+
+        if (item != null && claimedBy == null) {
+            claimedBy = sourceName
+        }
+
+        return item
+    }
+
+    internal fun finish(result: String) {
+        if (this.result != null) {
+            return
+        }
+
+        this.result = result
+        totalNanos = System.nanoTime() - startedAt
+
+        val claimed = "source:${claimedBy ?: "none"}"
+        Metrics.histogram("octave_bot.load.total", claimed, "result:$result").record(totalNanos.toMillis())
+        Metrics.histogram("octave_bot.load.probed", claimed).record(probed.toLong())
+
+        val slow = totalNanos >= SLOW_LOAD_NANOS
+
+        for (span in spans.toList()) {
+            Metrics.histogram("octave_bot.load.stage", "stage:${span.name}").record(span.nanos.toMillis())
+
+            if (slow) {
+                Metrics.histogram("octave_bot.load.slow_stage", "stage:${span.name}").record(span.nanos.toMillis())
+            }
+        }
+
+        if (slow) {
+            Metrics.counter("octave_bot.load.slow", claimed).increment()
+
+            synchronized(slowLog) {
+                if (slowLog.size == SLOW_LOG_SIZE) {
+                    slowLog.removeFirst()
+                }
+
+                slowLog.addLast(this)
+            }
+        }
+    }
+
+    private fun Long.toMillis() = TimeUnit.NANOSECONDS.toMillis(this)
+
+    class Span(val name: String, val nanos: Long)
+
+    companion object {
+        private const val SLOW_LOAD_MS = 2000L
+        private const val SLOW_LOG_SIZE = 20
+        private val SLOW_LOAD_NANOS = TimeUnit.MILLISECONDS.toNanos(SLOW_LOAD_MS)
+
+        internal val current = ThreadLocal<LoadTrace?>()
+        private val slowLog = ArrayDeque<LoadTrace>(SLOW_LOG_SIZE)
+
+        /**
+         * @return Recent loads slower than the slow threshold, newest first.
+         */
+        val slowest: List<LoadTrace>
+            get() = synchronized(slowLog) { slowLog.reversed() }
+
+        /**
+         * @return The trace of the load whose result handler is running on this thread, if any.
+         */
+        fun current(): LoadTrace? = current.get()
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.music.tracing
+
+import com.sedmelluq.discord.lavaplayer.player.AudioLoadResultHandler
+import com.sedmelluq.discord.lavaplayer.tools.FriendlyException
+import com.sedmelluq.discord.lavaplayer.track.AudioPlaylist
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack
+
+/**
+ * Closes the [LoadTrace] once the wrapped handler has dealt with the result.
+ */
+class TracingResultHandler(private val trace: LoadTrace, private val delegate: AudioLoadResultHandler) : AudioLoadResultHandler {
+    override fun trackLoaded(track: AudioTrack) = finish("track") { delegate.trackLoaded(track) }
+    override fun playlistLoaded(playlist: AudioPlaylist) = finish("playlist") { delegate.playlistLoaded(playlist) }
+    override fun noMatches() = finish("no_matches") { delegate.noMatches() }
+    override fun loadFailed(exception: FriendlyException) = finish("failed") { delegate.loadFailed(exception) }
+
+    private inline fun finish(result: String, block: () -> Unit) {
+        try {
+            trace.bind { trace.span("handler", block) }
+        } finally {
+            trace.finish(result)
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.music.tracing
+
+import com.sedmelluq.discord.lavaplayer.player.DefaultAudioPlayerManager
+import com.sedmelluq.discord.lavaplayer.source.AudioSourceManager
+import com.sedmelluq.discord.lavaplayer.track.AudioItem
+import com.sedmelluq.discord.lavaplayer.track.AudioReference
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackInfo
+import gg.octave.bot.music.utils.LoadReference
+import java.io.DataInput
+import java.io.DataOutput
+
+/**
+ * Records a span in the load's [LoadTrace] for every identifier offered to the wrapped source manager.
+ * The trace comes with the [LoadReference]; loads started without one, such as nested lookups a source
+ * manager makes itself, aren't traced.
+ * Everything else passes straight through, and tracks keep the wrapped manager as their source.
+ * Probing managers can't be wrapped, as lavaplayer tells them apart by type, so they aren't traced.
+ */
+class TracingSourceManager(val delegate: AudioSourceManager) : AudioSourceManager {
+    override fun getSourceName(): String = delegate.sourceName
+
+    override fun loadItem(manager: DefaultAudioPlayerManager, reference: AudioReference): AudioItem? {
+        val load = reference as? LoadReference
+        val trace = load?.trace
+            ?: return delegate.loadItem(manager, reference)
+
+        val item = trace.probe(sourceName) { delegate.loadItem(manager, reference) }
+
+        // Lavaplayer follows redirects with the reference it's given, keep the trace on it.
+        if (item is AudioReference && item !is LoadReference && item.identifier != null) {
+            return LoadReference(item.identifier, load.bypassNegative, trace, item.title)
+        }
+
+        return item
+    }
+
+    override fun isTrackEncodable(track: AudioTrack) = delegate.isTrackEncodable(track)
+    override fun encodeTrack(track: AudioTrack, output: DataOutput) = delegate.encodeTrack(track, output)
+    override fun decodeTrack(trackInfo: AudioTrackInfo, input: DataInput): AudioTrack? = delegate.decodeTrack(trackInfo, input)
+    override fun shutdown() = delegate.shutdown()
+}
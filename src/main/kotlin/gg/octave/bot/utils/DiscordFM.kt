@@ -27,13 +27,29 @@ package gg.octave.bot.utils
 import org.apache.commons.io.IOUtils
 import org.slf4j.LoggerFactory
 import java.io.IOException
+import java.util.concurrent.ConcurrentHashMap
 
 class DiscordFM {
     fun getRandomSong(library: String): String? {
-        return cache[library]?.random()?.trim { it <= ' ' }
+        val songs = cache[library]?.takeIf { it.isNotEmpty() }
+            ?: return null
+
+        // Dead songs are rare, so picking again is cheaper than keeping a filtered copy of the library.
+        return generateSequence { songs.random() }
+            .take(MAX_PICKS)
+            .firstOrNull { it !in deadSongs }
         //?: "https://www.youtube.com/watch?v=D7npse9n-Yw"
     }
 
+    /**
+     * Takes a song that no longer resolves out of rotation, until the next restart.
+     */
+    fun removeSong(library: String, url: String) {
+        if (cache[library]?.contains(url) == true) {
+            deadSongs.add(url)
+        }
+    }
+
     companion object {
         private val log = LoggerFactory.getLogger(DiscordFM::class.java)
         val LIBRARIES = arrayOf(
@@ -42,6 +58,8 @@ class DiscordFM {
             "metal mix", "hip hop", "electro swing", "christmas", "halloween",
             "purely pop", "rock n roll", "coffee house jazz", "funk")
         private val cache = HashMap<String, List<String>>(LIBRARIES.size)
+        private val deadSongs = ConcurrentHashMap.newKeySet<String>()
+        private const val MAX_PICKS = 10
     }
 
     init {
@@ -55,6 +73,7 @@ class DiscordFM {
                     val collect = IOUtils.toString(it, Charsets.UTF_8)
                         .split('\n')
                         .filter { s -> s.startsWith("https://") }
+                        .map { s -> s.trim { c -> c <= ' ' } }
 
                     cache[lib] = collect
                     log.info("Added {} tracks from playlist {}", collect.size, lib)
@@ -27,32 +27,60 @@ package gg.octave.bot.utils
 import ch.qos.logback.classic.Level
 import ch.qos.logback.classic.PatternLayout
 import ch.qos.logback.classic.spi.ILoggingEvent
-import ch.qos.logback.core.AppenderBase
+import ch.qos.logback.core.UnsynchronizedAppenderBase
 import club.minnced.discord.webhook.WebhookClient
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
 
-class DiscordLogBack : AppenderBase<ILoggingEvent>() {
+/**
+ * Forwards log events to a Discord webhook without ever blocking the thread that logged them.
+ *
+ * Events are rate limited per logger and put on a bounded queue; anything that doesn't fit is dropped
+ * and counted. A worker thread collapses repeats of the same message, formats the rest, batches them
+ * into as few webhook messages as possible, and does the HasteBin upload for messages that are too long.
+ */
+class DiscordLogBack : UnsynchronizedAppenderBase<ILoggingEvent>() {
     private var patternLayout: PatternLayout? = null
+    private val queue = ArrayBlockingQueue<Entry>(QUEUE_CAPACITY)
+    private val rateLimits = ConcurrentHashMap<String, RateLimit>()
+    private val recentlySent = HashMap<String, Repeat>() // Only touched by the worker.
+    @Volatile
+    private var worker: Thread? = null
 
     override fun append(event: ILoggingEvent) {
-        if (client == null) {
+        if (client == null || !event.level.isGreaterOrEqual(Level.INFO)) {
             return
         }
 
-        if (!event.level.isGreaterOrEqual(Level.INFO)) {
+        // The webhook client logs its own failures, don't feed those back into it.
+        if (Thread.currentThread() === worker || event.loggerName.startsWith("club.minnced.discord.webhook")) {
             return
         }
 
-        var content = patternLayout!!.doLayout(event)
+        if (mentionsUnknownHost(event)) { //Spams the shit out of console, not needed
+            return
+        }
 
-        if (!content.contains("UnknownHostException")) //Spams the shit out of console, not needed
-            if (content.length > 2000) {
-                val sb = StringBuilder(":warning: Received a message but it was too long. ")
-                val url = Utils.hasteBin(content)
-                sb.append(url ?: "Error while posting to HasteBin.")
-                content = sb.toString()
-            }
+        val rateLimit = rateLimits.computeIfAbsent(event.loggerName) { RateLimit() }
+
+        if (!rateLimit.tryAcquire()) {
+            dropped.incrementAndGet()
+            return
+        }
+
+        // Formatting, stack traces included, is left to the worker, after it has checked for repeats.
+        event.prepareForDeferredProcessing()
 
-        client?.send(content)
+        if (!queue.offer(Entry("${event.loggerName}/${event.level}/${event.formattedMessage}", event))) {
+            dropped.incrementAndGet()
+        }
+    }
+
+    private fun mentionsUnknownHost(event: ILoggingEvent): Boolean {
+        return "UnknownHostException" in event.formattedMessage.orEmpty()
+            || generateSequence(event.throwableProxy) { it.cause }.any { it.className.endsWith("UnknownHostException") }
     }
 
     override fun start() {
@@ -60,12 +88,146 @@ class DiscordLogBack : AppenderBase<ILoggingEvent>() {
         patternLayout!!.context = getContext()
         patternLayout!!.pattern = "`%d{HH:mm:ss}` `%t/%level` `%logger{0}` %msg"
         patternLayout!!.start()
-
         super.start()
+
+        // The worker runs while the appender is started, so the flag has to be set first.
+        worker = Thread(::work, "DiscordLogBack-Worker").apply {
+            isDaemon = true
+            start()
+        }
+    }
+
+    override fun stop() {
+        super.stop()
+        worker?.interrupt()
+    }
+
+    private fun work() {
+        var reportedDrops = 0L
+
+        while (isStarted) {
+            try {
+                val first = queue.poll(BATCH_INTERVAL_MS, TimeUnit.MILLISECONDS)
+                val lines = mutableListOf<String>()
+                val now = System.currentTimeMillis()
+
+                lines += expireRepeats(now)
+
+                if (first != null) {
+                    Thread.sleep(BATCH_INTERVAL_MS) // Let the rest of a burst arrive so it can share a message.
+                    val batch = mutableListOf(first)
+                    queue.drainTo(batch, MAX_BATCH)
+                    lines += batch.mapNotNull { suppressRepeat(it, now) }
+                }
+
+                val totalDropped = dropped.get()
+                if (totalDropped > reportedDrops) {
+                    lines += ":warning: Dropped **${totalDropped - reportedDrops}** log messages (rate limited or queue full)."
+                    reportedDrops = totalDropped
+                }
+
+                send(lines)
+            } catch (e: InterruptedException) {
+                return
+            } catch (e: Exception) {
+                // Nowhere to report this without risking a loop, so carry on with the next batch.
+            }
+        }
+    }
+
+    /**
+     * @return The line to send, or null if the same message was sent recently.
+     */
+    private fun suppressRepeat(entry: Entry, now: Long): String? {
+        val repeat = recentlySent[entry.key]
+
+        if (repeat != null && now - repeat.firstSentAt < REPEAT_WINDOW_MS) {
+            repeat.count++
+            return null
+        }
+
+        val content = patternLayout!!.doLayout(entry.event)
+        recentlySent[entry.key] = Repeat(now, content)
+        return content
+    }
+
+    private fun expireRepeats(now: Long): List<String> {
+        val expired = recentlySent.entries.filter { now - it.value.firstSentAt >= REPEAT_WINDOW_MS }
+        expired.forEach { recentlySent.remove(it.key) }
+
+        return expired.filter { it.value.count > 0 }
+            .map { "${it.value.content.substringBefore('\n').take(200)} *(repeated ${it.value.count} more times)*" }
+    }
+
+    private fun send(lines: List<String>) {
+        val message = StringBuilder()
+
+        for (line in lines) {
+            val content = if (line.length > MESSAGE_LIMIT) {
+                ":warning: Received a message but it was too long. " + (Utils.hasteBin(line) ?: "Error while posting to HasteBin.")
+            } else {
+                line
+            }
+
+            if (message.length + content.length + 1 > MESSAGE_LIMIT) {
+                client?.send(message.toString())
+                message.setLength(0)
+            }
+
+            if (message.isNotEmpty()) {
+                message.append('\n')
+            }
+
+            message.append(content)
+        }
+
+        if (message.isNotEmpty()) {
+            client?.send(message.toString())
+        }
+    }
+
+    private class Entry(val key: String, val event: ILoggingEvent)
+    private class Repeat(val firstSentAt: Long, val content: String, var count: Int = 0)
+
+    /**
+     * Allows bursts of [RATE_LIMIT_BURST] events per logger, refilling one every [RATE_LIMIT_REFILL_MS].
+     */
+    private class RateLimit {
+        private var tokens = RATE_LIMIT_BURST.toDouble()
+        private var refilledAt = System.currentTimeMillis()
+
+        @Synchronized
+        fun tryAcquire(): Boolean {
+            val now = System.currentTimeMillis()
+            tokens = (tokens + (now - refilledAt).toDouble() / RATE_LIMIT_REFILL_MS).coerceAtMost(RATE_LIMIT_BURST.toDouble())
+            refilledAt = now
+
+            if (tokens < 1) {
+                return false
+            }
+
+            tokens--
+            return true
+        }
     }
 
     companion object {
         private var client: WebhookClient? = null
+        private val dropped = AtomicLong()
+
+        private const val QUEUE_CAPACITY = 256
+        private const val MAX_BATCH = 50
+        private const val MESSAGE_LIMIT = 2000
+        private const val BATCH_INTERVAL_MS = 2000L
+        private const val REPEAT_WINDOW_MS = 60_000L
+        private const val RATE_LIMIT_BURST = 10
+        private const val RATE_LIMIT_REFILL_MS = 6000L
+
+        /**
+         * The number of log messages that were dropped because of rate limits or a full queue.
+         */
+        val droppedMessages: Long
+            get() = dropped.get()
 
         fun enable(webhookClient: WebhookClient) {
             client = webhookClient
@@ -24,13 +24,36 @@
 
 package gg.octave.bot.utils
 
+import gg.octave.bot.Launcher
+import gg.octave.bot.utils.http.HostConcurrencyInterceptor
+import gg.octave.bot.utils.http.MetricsInterceptor
+import gg.octave.bot.utils.http.RetryInterceptor
 import okhttp3.*
 import org.json.JSONObject
 import java.io.IOException
 import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
 
+/**
+ * The one HTTP client for all outbound API calls, so they share a connection pool (connections are
+ * pooled per host, and HTTP/2 is negotiated where the server supports it), timeouts, retries,
+ * per-host concurrency limits and latency metrics.
+ */
 object RequestUtil {
-    private val httpClient = OkHttpClient()
+    private val config = Launcher.configuration
+
+    val httpClient: OkHttpClient = OkHttpClient.Builder()
+        .connectTimeout(config.httpConnectTimeout.toMillis(), TimeUnit.MILLISECONDS)
+        .readTimeout(config.httpReadTimeout.toMillis(), TimeUnit.MILLISECONDS)
+        .writeTimeout(config.httpReadTimeout.toMillis(), TimeUnit.MILLISECONDS)
+        .protocols(listOf(Protocol.HTTP_2, Protocol.HTTP_1_1))
+        .connectionPool(ConnectionPool(16, 5, TimeUnit.MINUTES))
+        .dispatcher(Dispatcher().apply { maxRequestsPerHost = config.httpMaxRequestsPerHost })
+        .addInterceptor(RetryInterceptor(config.httpMaxRetries, 250))
+        // Inside the retry interceptor, so a request doesn't hold its permit while it waits to retry.
+        .addInterceptor(HostConcurrencyInterceptor(config.httpMaxRequestsPerHost, config.httpReadTimeout.toMillis()))
+        .addInterceptor(MetricsInterceptor())
+        .build()
 
     /* Media Types */
     val APPLICATION_JSON: MediaType = MediaType.get("application/json")
@@ -58,6 +81,12 @@ object RequestUtil {
     }
 
     class PendingRequest(private val req: Request) {
+        /**
+         * Executes the request on the calling thread.
+         */
+        @Throws(IOException::class)
+        fun execute(): Response = httpClient.newCall(req).execute()
+
         fun submit(): CompletableFuture<Response> {
             val future = CompletableFuture<Response>()
 
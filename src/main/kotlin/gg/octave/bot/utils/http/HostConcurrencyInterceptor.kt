@@ -0,0 +1,102 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.utils.http
+
+import okhttp3.Interceptor
+import okhttp3.Response
+import okhttp3.ResponseBody
+import okio.ForwardingSource
+import okio.Okio
+import java.io.IOException
+import java.io.InterruptedIOException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Caps the number of requests in flight to any one host, for synchronous and asynchronous calls alike.
+ * Requests wait up to [maxWaitMs] for a slot before failing.
+ *
+ * A slot is held until the response body is closed, so callers must close every response they get.
+ */
+class HostConcurrencyInterceptor(private val maxPerHost: Int, private val maxWaitMs: Long) : Interceptor {
+    private val permits = ConcurrentHashMap<String, Semaphore>()
+
+    @Throws(IOException::class)
+    override fun intercept(chain: Interceptor.Chain): Response {
+        val host = chain.request().url().host()
+        val semaphore = permits.computeIfAbsent(host) { Semaphore(maxPerHost) }
+
+        val acquired = try {
+            semaphore.tryAcquire(maxWaitMs, TimeUnit.MILLISECONDS)
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+            throw InterruptedIOException("Interrupted while waiting for a connection slot to $host")
+        }
+
+        if (!acquired) {
+            throw IOException("Too many concurrent requests to $host")
+        }
+
+        val released = AtomicBoolean()
+        val release = {
+            if (released.compareAndSet(false, true)) {
+                semaphore.release()
+            }
+        }
+
+        val response = try {
+            chain.proceed(chain.request())
+        } catch (e: Throwable) {
+            release()
+            throw e
+        }
+
+        val body = response.body() ?: return response.also { release() }
+        return response.newBuilder().body(ReleasingBody(body, release)).build()
+    }
+
+    /**
+     * Releases the host slot once the body has been read or discarded.
+     */
+    private class ReleasingBody(private val body: ResponseBody, release: () -> Unit) : ResponseBody() {
+        private val source = Okio.buffer(object : ForwardingSource(body.source()) {
+            override fun close() {
+                try {
+                    super.close()
+                } finally {
+                    release()
+                }
+            }
+        })
+
+        override fun contentType() = body.contentType()
+
+        override fun contentLength() = body.contentLength()
+
+        override fun source() = source
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2020 Melms Media LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package gg.octave.bot.utils.http
+
+import okhttp3.Interceptor
+import okhttp3.Response
+import java.io.IOException
+import java.util.concurrent.ThreadLocalRandom
+
+/**
+ * Retries idempotent requests that failed with an I/O error or a temporary server error, waiting an
+ * exponentially growing, fully jittered delay between attempts so retries from many callers don't line up.
+ *
+ * 429s are left to the caller, since only the caller knows how its rate limits are shared.
+ */
+class RetryInterceptor(private val maxRetries: Int, private val baseDelayMs: Long) : Interceptor {
+    @Throws(IOException::class)
+    override fun intercept(chain: Interceptor.Chain): Response {
+        val request = chain.request()
+
+        if (request.method() !in IDEMPOTENT_METHODS) {
+            return chain.proceed(request)
+        }
+
+        var attempt = 0
+
+        while (true) {
+            val response = try {
+                chain.proceed(request)
+            } catch (e: IOException) {
+                if (attempt >= maxRetries) {
+                    throw e
+                }
+
+                null
+            }
+
+            if (response != null && (response.code() !in RETRYABLE_CODES || attempt >= maxRetries)) {
+                return response
+            }
+
+            response?.close()
+            sleep(attempt++)
+        }
+    }
+
+    private fun sleep(attempt: Int) {
+        val ceiling = baseDelayMs shl attempt.coerceAtMost(6)
+
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling + 1))
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+            throw IOException("Interrupted while waiting to retry", e)
+        }
+    }
+
+    companion object {
+        private val IDEMPOTENT_METHODS = setOf("GET", "HEAD", "OPTIONS")
+        private val RETRYABLE_CODES = setOf(500, 502, 503, 504)
+    }
+}